@@ -0,0 +1,163 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+/**
+ * Persistent list of classes, held by each Dex jar of the unit. Lets the class loader map a class name straight to
+ * the Dex file, which defines it, without asking every Dex file in turn (or walking their class lists on each start).
+ *
+ * <p>
+ *
+ * Entries are keyed by jar name and verified by size and modification time of the jar, so a rewritten jar is
+ * indexed anew.
+ *
+ * <p>
+ *
+ * Instances are not thread-safe.
+ */
+@CompileStatic @PackageScope
+final class ClassIndex {
+    static final String FILE_NAME = 'classes.idx'
+
+    private static final int VERSION = 1
+
+    private final Map<String, Entry> jars = new HashMap<>()
+
+    private final File file
+
+    private boolean dirty
+
+    private ClassIndex(File file) {
+        this.file = file
+    }
+
+    static ClassIndex open(File unitDir) {
+        def index = new ClassIndex(new File(unitDir, FILE_NAME))
+
+        if (index.file.exists()) {
+            try {
+                index.read()
+            } catch (IOException ioe) {
+                index.jars.clear()
+            }
+        }
+
+        return index
+    }
+
+    /**
+     * @return names of classes in the jar, or null, if the jar is not indexed or has changed since
+     */
+    String[] lookup(File dexJar) {
+        def entry = jars.get(dexJar.name)
+
+        if (entry && entry.length == dexJar.length() && entry.modified == dexJar.lastModified())
+            return entry.classes
+
+        return null
+    }
+
+    void put(File dexJar, String[] classes) {
+        jars.put(dexJar.name, new Entry(dexJar.length(), dexJar.lastModified(), classes))
+
+        dirty = true
+    }
+
+    /**
+     * Forget all jars except specified ones
+     */
+    void retain(Collection<String> jarNames) {
+        if (jars.keySet().retainAll(jarNames))
+            dirty = true
+    }
+
+    void save() throws IOException {
+        if (!dirty) return
+
+        UnitFiles.replace(file) { OutputStream os ->
+            new DataOutputStream(new BufferedOutputStream(os)).withCloseable {
+                it.writeInt(VERSION)
+                it.writeInt(jars.size())
+
+                for (Map.Entry<String, Entry> e : jars.entrySet()) {
+                    def entry = e.value
+
+                    it.writeUTF(e.key)
+                    it.writeLong(entry.length)
+                    it.writeLong(entry.modified)
+                    it.writeInt(entry.classes.length)
+
+                    for (String className : entry.classes) {
+                        it.writeUTF(className)
+                    }
+                }
+            }
+        }
+
+        dirty = false
+    }
+
+    private void read() throws IOException {
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file))).withCloseable {
+            if (it.readInt() != VERSION) throw new IOException("$file has unsupported version")
+
+            int count = it.readInt()
+
+            for (int i = 0; i < count; i++) {
+                def jarName = it.readUTF()
+                def length = it.readLong()
+                def modified = it.readLong()
+
+                def classes = new String[it.readInt()]
+
+                for (int j = 0; j < classes.length; j++) {
+                    classes[j] = it.readUTF()
+                }
+
+                jars.put(jarName, new Entry(length, modified, classes))
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long length
+        final long modified
+        final String[] classes
+
+        Entry(long length, long modified, String[] classes) {
+            this.length = length
+            this.modified = modified
+            this.classes = classes
+        }
+    }
+}
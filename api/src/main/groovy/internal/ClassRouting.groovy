@@ -0,0 +1,176 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Routing of class lookups of {@link DexGroovyClassloader}: names, which go to parent class loader only, and names,
+ * which are known to be missing. Misses are remembered with the generation of class path, they have happened in.
+ */
+@CompileStatic @PackageScope
+final class ClassRouting {
+    /**
+     * Framework packages, loaded by parent class loader only. Grabbed .aar files bring their own android.* packages
+     * (android.support.*, android.arch.*), so android.* is not routed as whole
+     */
+    static final Set<String> FRAMEWORK_PREFIXES = Collections.unmodifiableSet(new LinkedHashSet<String>([
+            'java.', 'dalvik.', 'com.android.internal.',
+            'android.R', 'android.accounts.', 'android.animation.', 'android.app.', 'android.content.',
+            'android.database.', 'android.graphics.', 'android.hardware.', 'android.location.', 'android.media.',
+            'android.net.', 'android.opengl.', 'android.os.', 'android.preference.', 'android.provider.',
+            'android.telephony.', 'android.text.', 'android.util.', 'android.view.', 'android.webkit.',
+            'android.widget.' ]))
+
+    /**
+     * Parent-only prefixes of class loaders, created from now on
+     */
+    static volatile Set<String> defaultPrefixes = FRAMEWORK_PREFIXES
+
+    private static final int MISSING_CLASSES_MAX = 4096
+
+    private volatile String[] prefixes
+
+    // names, missing from both parent and Dex files, with the class path generation of the miss
+    private final ConcurrentHashMap<String, Long> absent = new ConcurrentHashMap<>()
+
+    // names, routed to parent only and missing there; parent never changes, so those are never invalidated
+    private final Set<String> absentInParent = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+
+    private final AtomicLong generation = new AtomicLong()
+
+    ClassRouting() {
+        this(defaultPrefixes)
+    }
+
+    ClassRouting(Collection<String> prefixes) {
+        this.prefixes = prefixes as String[]
+    }
+
+    boolean isParentOnly(String name) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) return true
+        }
+
+        return false
+    }
+
+    synchronized void addPrefix(String prefix) {
+        if (prefix in prefixes) return
+
+        def updated = Arrays.copyOf(prefixes, prefixes.length + 1)
+
+        updated[updated.length - 1] = prefix
+
+        prefixes = updated
+    }
+
+    synchronized void removePrefix(String prefix) {
+        def updated = prefixes.findAll { String it -> it != prefix } as String[]
+
+        if (updated.length == prefixes.length) return
+
+        prefixes = updated
+
+        // those names may be in Dex files
+        absentInParent.clear()
+    }
+
+    /**
+     * Loads parent-only class, failing fast for names, which have been missing before
+     */
+    Class<?> loadFromParent(ClassLoader parent, String name) throws ClassNotFoundException {
+        if (absentInParent.contains(name)) throw new KnownMissingClassException(name)
+
+        try {
+            return parent.loadClass(name)
+        } catch (ClassNotFoundException cnfe) {
+            if (absentInParent.size() >= MISSING_CLASSES_MAX) absentInParent.clear()
+
+            absentInParent.add(name)
+
+            throw cnfe
+        }
+    }
+
+    /**
+     * @return the current generation of class path, to be passed to {@link #isMissing} and {@link #missing}
+     */
+    long getGeneration() {
+        return generation.get()
+    }
+
+    boolean isMissing(String name, long generation) {
+        Long missedIn = absent.get(name)
+
+        if (missedIn == null) return false
+
+        if (missedIn == generation) return true
+
+        absent.remove(name, missedIn)
+
+        return false
+    }
+
+    void missing(String name, long generation) {
+        // those are mostly failed probes by Groovy resolver, just don't let them take all the memory
+        if (absent.size() >= MISSING_CLASSES_MAX) absent.clear()
+
+        absent.put(name, generation)
+    }
+
+    /**
+     * Forgets misses of older generations; called, whenever the set of Dex files or pending jars changes
+     */
+    void classPathChanged() {
+        generation.incrementAndGet()
+
+        absent.clear()
+    }
+
+    /**
+     * Thrown for names, that are already known to be absent. Skips filling in the stack trace, because failing
+     * probes come in large numbers during compilation
+     */
+    static final class KnownMissingClassException extends ClassNotFoundException {
+        KnownMissingClassException(String className) {
+            super(className)
+        }
+
+        @Override
+        Throwable fillInStackTrace() {
+            return this
+        }
+    }
+}
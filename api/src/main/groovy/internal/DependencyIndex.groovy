@@ -0,0 +1,376 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.security.MessageDigest
+import java.util.zip.ZipFile
+
+/**
+ * Persistent mapping of dependency jars to Dex files, holding their classes (a big jar may be split between several
+ * Dex files, several small jars may be {@link #replace merged} in one). A dependency may also be dexed
+ * {@link #putPartial partially}, in which case it's Dex files hold only classes, that have been needed so far. Stored next to the unit jar, so that
+ * finding out if some dependency has already been dexed takes a single lookup instead of opening every Dex jar
+ * in unit directory and searching it's comment.
+ *
+ * <p>
+ *
+ * Each entry remembers size, modification time and SHA-1 of the dependency jar. Size and time are checked first;
+ * the hash is recomputed only if those differ, so a jar, which got touched without changes, is still recognized,
+ * but a jar, replaced at the same path, is not.
+ *
+ * <p>
+ *
+ * Instances are not thread-safe.
+ */
+@CompileStatic @PackageScope
+final class DependencyIndex {
+    static final String FILE_NAME = 'dependencies.idx'
+
+    private static final int VERSION = 3
+
+    private final Map<String, Entry> entries = new HashMap<>()
+
+    private final Set<String> stale = new HashSet<>()
+
+    private final File file
+
+    private boolean dirty
+
+    private DependencyIndex(File file) {
+        this.file = file
+    }
+
+    /**
+     * Reads the index from unit directory. If the directory has no index, but has Dex jars from older versions, the
+     * index is created from the comments of those jars.
+     */
+    static DependencyIndex open(File unitDir, File unitFile) {
+        def index = new DependencyIndex(new File(unitDir, FILE_NAME))
+
+        if (index.file.exists()) {
+            try {
+                index.read()
+
+                return index
+            } catch (IOException ioe) {
+                index.entries.clear()
+            }
+        }
+
+        unitDir.listFiles()?.each { File dexJar ->
+            if (dexJar.name.endsWith('.jar') && dexJar != unitFile) {
+                index.migrate(dexJar)
+            }
+        }
+
+        return index
+    }
+
+    /**
+     * @return names of Dex jars, holding classes of the dependency, or null if the dependency needs to be dexed again
+     */
+    List<String> lookup(String dependency, File jar) {
+        def entry = entries.get(dependency)
+
+        if (!entry) return null
+
+        if (entry.length == jar.length() && entry.modified == jar.lastModified()) return entry.dexJars
+
+        def currentHash = hash(jar)
+
+        if (entry.hash == null || entry.hash == currentHash) {
+            // touched, but not changed (or migrated from older version, which did not store a hash)
+            entries.put(dependency, new Entry(entry.dexJars, jar.length(), jar.lastModified(), currentHash,
+                    jar.path, entry.partial))
+
+            dirty = true
+
+            return entry.dexJars
+        }
+
+        entries.remove(dependency)
+
+        for (String dexJar : entry.dexJars) {
+            if (!isReferenced(dexJar)) stale.add(dexJar)
+        }
+
+        dirty = true
+
+        return null
+    }
+
+    void put(String dependency, File jar, String hash, List<String> dexJars) {
+        entries.put(dependency, new Entry(dexJars, jar.length(), jar.lastModified(), hash, jar.path, false))
+
+        stale.removeAll(dexJars)
+
+        dirty = true
+    }
+
+    /**
+     * Records a dependency, whose classes are dexed on demand, see {@link #append}
+     */
+    void putPartial(String dependency, File jar, String hash) {
+        entries.put(dependency, new Entry(Collections.<String>emptyList(), jar.length(), jar.lastModified(), hash,
+                jar.path, true))
+
+        dirty = true
+    }
+
+    /**
+     * Adds a Dex jar, holding more classes of partially dexed dependency
+     */
+    void append(String dependency, String dexJar) {
+        def entry = entries.get(dependency)
+
+        if (!entry) return
+
+        def dexJars = new ArrayList<String>(entry.dexJars)
+        dexJars.add(dexJar)
+
+        entries.put(dependency, new Entry(dexJars, entry.length, entry.modified, entry.hash, entry.source, entry.partial))
+
+        stale.remove(dexJar)
+
+        dirty = true
+    }
+
+    /**
+     * @return jars of partially dexed dependencies by names of dependencies
+     */
+    Map<String, File> getPartialJars() {
+        def result = new HashMap<String, File>()
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.value.partial && e.value.source) result.put(e.key, new File(e.value.source))
+        }
+
+        return result
+    }
+
+    /**
+     * Makes all dependencies, held by any of specified Dex jars, point to the bundle, which holds all of their classes
+     *
+     * @return names of replaced Dex jars, which are no longer referenced
+     */
+    Set<String> replace(Collection<String> dexJars, String bundle) {
+        def replaced = new HashSet<String>()
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            def entry = e.value
+
+            if (!entry.dexJars.any { String it -> it in dexJars }) continue
+
+            def updated = new ArrayList<String>()
+
+            for (String dexJar : entry.dexJars) {
+                def replacement = dexJar in dexJars ? bundle : dexJar
+
+                if (dexJar != replacement) replaced.add(dexJar)
+
+                if (!(replacement in updated)) updated.add(replacement)
+            }
+
+            e.value = new Entry(updated, entry.length, entry.modified, entry.hash, entry.source, entry.partial)
+        }
+
+        dirty = true
+
+        replaced.removeAll { String it -> isReferenced(it) }
+
+        return replaced
+    }
+
+    /**
+     * @return names of all Dex jars, referenced by the index
+     */
+    Set<String> getDexJars() {
+        def result = new LinkedHashSet<String>()
+
+        for (Entry entry : entries.values()) {
+            result.addAll(entry.dexJars)
+        }
+
+        return result
+    }
+
+    /**
+     * Removes all dependencies, held by the Dex jar, so that they get dexed again
+     */
+    void forget(String dexJar) {
+        if (entries.values().removeAll { Entry it -> dexJar in it.dexJars }) dirty = true
+    }
+
+    boolean isReferenced(String dexJar) {
+        entries.values().any { Entry it -> dexJar in it.dexJars }
+    }
+
+    /**
+     * @return names of Dex jars, which do not hold any up-to-date dependency since last call to this method
+     */
+    Set<String> takeStale() {
+        def result = new HashSet<String>(stale)
+
+        stale.clear()
+
+        return result
+    }
+
+    void save() throws IOException {
+        if (!dirty) return
+
+        UnitFiles.replace(file) { OutputStream os ->
+            new DataOutputStream(new BufferedOutputStream(os)).withCloseable {
+                it.writeInt(VERSION)
+                it.writeInt(entries.size())
+
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    def entry = e.value
+
+                    it.writeUTF(e.key)
+                    it.writeInt(entry.dexJars.size())
+                    for (String dexJar : entry.dexJars) {
+                        it.writeUTF(dexJar)
+                    }
+                    it.writeLong(entry.length)
+                    it.writeLong(entry.modified)
+                    it.writeUTF(entry.hash ?: '')
+                    it.writeUTF(entry.source ?: '')
+                    it.writeBoolean(entry.partial)
+                }
+            }
+        }
+
+        dirty = false
+    }
+
+    private void read() throws IOException {
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file))).withCloseable {
+            int version = it.readInt()
+
+            if (version < 1 || version > VERSION) throw new IOException("$file has unsupported version")
+
+            int count = it.readInt()
+
+            for (int i = 0; i < count; i++) {
+                def dependency = it.readUTF()
+
+                def dexJars = new ArrayList<String>()
+
+                if (version == 1) {
+                    dexJars.add(it.readUTF())
+                } else {
+                    int parts = it.readInt()
+
+                    for (int j = 0; j < parts; j++) {
+                        dexJars.add(it.readUTF())
+                    }
+                }
+
+                def length = it.readLong()
+                def modified = it.readLong()
+                def hash = it.readUTF()
+                def source = version >= 3 ? it.readUTF() : ''
+                def partial = version >= 3 ? it.readBoolean() : false
+
+                entries.put(dependency, new Entry(dexJars, length, modified, hash ?: null, source ?: null, partial))
+            }
+        }
+    }
+
+    private void migrate(File dexJar) {
+        String comment
+
+        try {
+            comment = new ZipFile(dexJar).withCloseable { it.comment } as String
+        } catch (IOException ignored) {
+            return
+        }
+
+        if (!comment) return
+
+        // the comment is a concatenation of dependency names, each made of up to 4 path components
+        def components = comment.split('/')
+
+        for (int i = 0; i + 4 <= components.length; i += 4) {
+            def dependency = components[i..i + 3].join('/') + '/'
+
+            entries.put(dependency, new Entry(Collections.singletonList(dexJar.name), -1, -1, null, null, false))
+        }
+
+        dirty = true
+    }
+
+    static String hash(File jar) throws IOException {
+        def digest = MessageDigest.getInstance('SHA-1')
+
+        def buffer = new byte[8192]
+
+        new FileInputStream(jar).withCloseable {
+            int read
+            while ((read = it.read(buffer)) != -1) {
+                digest.update(buffer, 0, read)
+            }
+        }
+
+        return toHex(digest.digest())
+    }
+
+    static String toHex(byte[] bytes) {
+        def hex = new StringBuilder(bytes.length * 2)
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16))
+        }
+
+        return hex.toString()
+    }
+
+    private static final class Entry {
+        final List<String> dexJars
+        final long length
+        final long modified
+        final String hash
+        final String source
+        final boolean partial
+
+        Entry(List<String> dexJars, long length, long modified, String hash, String source, boolean partial) {
+            this.dexJars = dexJars
+            this.length = length
+            this.modified = modified
+            this.hash = hash
+            this.source = source
+            this.partial = partial
+        }
+    }
+}
@@ -31,10 +31,12 @@ package internal;
 
 import android.content.Context
 import android.os.Process
+import android.os.SystemClock
 import android.support.v4.content.ContextCompat
 import android.support.v4.util.CircularArray
 import android.util.Log
 import android.util.ArrayMap
+import com.android.dex.Dex
 import com.android.dex.DexFormat
 import com.android.dx.Version
 import com.android.dx.cf.direct.DirectClassFile
@@ -42,8 +44,14 @@ import com.android.dx.cf.direct.StdAttributeFactory;
 import com.android.dx.dex.DexOptions;
 import com.android.dx.dex.cf.CfOptions
 import com.android.dx.dex.cf.CfTranslator
-import com.android.dx.dex.code.PositionList;
 import com.android.dx.dex.file.DexFile
+import com.android.dx.merge.CollisionPolicy
+import com.android.dx.merge.DexMerger
+import com.android.dx.rop.cst.CstBaseMethodRef
+import com.android.dx.rop.cst.CstFieldRef
+import com.android.dx.rop.cst.CstType
+import com.android.dx.rop.type.Prototype
+import com.android.dx.rop.type.Type
 import com.android.dx.util.ByteArray
 import dalvik.system.BaseDexClassLoader
 import dalvik.system.DexClassLoader
@@ -53,6 +61,7 @@ import groovy.lang.GroovyClassLoader.InnerLoader
 import groovy.transform.CompileStatic
 import groovy.transform.PackageScope
 import groovy.transform.TupleConstructor
+import net.sf.fakenames.api.CompileProfile
 import org.codehaus.groovy.ast.ClassNode
 import org.codehaus.groovy.ast.ModuleNode;
 import org.codehaus.groovy.control.BytecodeProcessor;
@@ -63,9 +72,22 @@ import org.codehaus.groovy.control.CompilerConfiguration
 import org.codehaus.groovy.control.SourceUnit
 import org.codehaus.groovy.runtime.metaclass.ConcurrentReaderHashMap
 
+import java.nio.ByteBuffer
 import java.security.CodeSource
+import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.Attributes;
@@ -73,11 +95,13 @@ import java.util.jar.JarEntry
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest
+import java.util.regex.Pattern
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
 
 import dalvik.system.DexFile as LoadedDex
 
-import java.util.zip.ZipFile
-
 /**
  * A mix of {@link DexClassLoader} and {@link GroovyClassLoader}. This class does the following:
  *
@@ -89,21 +113,30 @@ import java.util.zip.ZipFile
  *
  * <p>
  *
- * There is currently no "recompilation", neither for Dex files nor for Groovy scripts. Using the class loader to
- * load classes of a previously compiled script will run associated Dex without regard to it's {@link GroovyCodeSource}.
- * Parsing the script goes on without care for any existing compiled classes, those have to be removed externally.
- * Any already existing Dex files (e.g. from compilation of third-party jars) will be added to class path without
- * any checks for staleness or modifications.
+ * Using the class loader to load classes of a previously compiled script will run associated Dex without regard to
+ * it's {@link GroovyCodeSource}. Parsing the script goes on without care for any existing compiled classes, those have
+ * to be removed externally (callers find out, whether the unit is up to date, from it's {@link UnitStamp}).
+ * Dex files, produced from third-party jars, are tracked by {@link DependencyIndex}: a jar is dexed again, if it
+ * has changed since.
  *
  * <p>
  *
- * The mechanics of class-to-dex conversion are a lot simpler, compared to dx. There are no threads. The splitting
- * in multiple dex files is done following two rules:
+ * Dex files of third-party jars are kept in {@link SharedDexStore}, keyed by the jar contents and dx options, and
+ * reused by every unit, which grabs the same jar. Such Dex files are reference-counted and removed, when the last
+ * unit, using them, is cleaned up or moves on to a newer version of the jar.
  *
- * <li>
- *     <ul> Each .jar file must fit wholly inside single .dex file
- *     <ul> If the amount of classes in single .dex exceeds some arbitrary (small) number, another dex file is created
- * </li>
+ * <p>
+ *
+ * Classes are looked up via {@link ClassIndex} without global locks; only conversion of jars to Dex format is
+ * exclusive. Framework packages go to the parent straight away (see {@link ClassRouting}).
+ *
+ * <p>
+ *
+ * The mechanics of class-to-dex conversion are a lot simpler, compared to dx. Classes are translated by a pool of
+ * threads (see {@link #dexingParallelism}), each .jar file into .dex files of it's own. Undersized .dex files are
+ * merged, when idle (see {@link #compact}). Optionally, only the classes, reachable from those actually loaded, are
+ * converted (see {@link #shrinkDependencies}). By default jars are converted in background as soon as they are added
+ * (see {@link #eagerDexing}). Jars with classes.dex inside skip conversion; dx options follow {@link CompileProfile}.
  *
  * Due to the way Android VMs work there will be N memory-mapped files per DexGroovyClassloader instance, where N is
  * at least as big as number of extra JARs + 1 (for the main script file). Close the class loader to unmap those...
@@ -126,6 +159,8 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
 
     private static final String DEX_SUFFIX = '.dex'
 
+    private static final String OPTIMIZED_DIR = 'oat'
+
     private static final Attributes.Name CREATED_BY = new Attributes.Name('Created-By')
     private static final Attributes.Name MANIFEST_VERSION = new Attributes.Name('Manifest-Version')
 
@@ -140,21 +175,68 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
 
     final CfOptions cfOptions = new CfOptions()
 
+    private final DependencyIndex dependencies
+
+    private final ClassIndex classIndex
+
+    // read without any locks, modified only while holding the dexing lock
+    private final Map<String, LoadedDex> classLocations = new ConcurrentHashMap<>()
+
+    // per-name locks, guarding definition of classes from Dex files, removed once it is done
+    private final ConcurrentMap<String, Object> classLoadingLocks = new ConcurrentHashMap<>()
+
     DexFile dexFile = null
     Set<String> classNames = null
 
     private volatile boolean closed
 
     private final CircularArray<LoadedDex> dexClassPath = new CircularArray<>()
-    private final Set<String> pendingClasspath = new HashSet<>()
+    private final Set<String> pendingClasspath = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+
+    /**
+     * When set, grabbed jars are not dexed as whole: only classes, reachable from the class being loaded, are dexed
+     * (see {@link #dexReachable}). Jars, already dexed as whole for other scripts, are used as they are
+     */
+    static volatile boolean shrinkDependencies
+
+    /**
+     * When set, shared Dex files are written as raw .dex files with single write instead of being wrapped in jars
+     */
+    static volatile boolean rawDexOutput
+
+    // time, spent writing Dex files during current dexing round
+    private final AtomicLong writeMillis = new AtomicLong()
+
+    /**
+     * Cumulative timings and counters of everything, done by this class loader
+     */
+    final LoaderMetrics metrics = new LoaderMetrics()
+
+    // classes of partially dexed jars, which haven't been dexed yet; guarded by the dexing lock
+    private final Map<String, PooledClass> shrinkPool = new HashMap<>()
+
+    // partially dexed jars from earlier runs, read on the first miss; guarded by the dexing lock
+    private final Map<String, File> unreadShrinkJars = new HashMap<>()
+
+    // reflectively loaded classes of pooled jars; guarded by the dexing lock
+    private final Set<String> pendingRoots = new LinkedHashSet<>()
 
-    private final ThreadLocal<Set<String>> locallyWanted = new ThreadLocal<>();
+    private volatile boolean shrinking
+
+    private final ThreadLocal<Set<String>> locallyWanted = new ThreadLocal<Set<String>>() {
+        @Override
+        protected Set<String> initialValue() {
+            return new HashSet<String>()
+        }
+    }
 
-    { locallyWanted.set(new HashSet<>()) }
+    // parent-only packages and known misses, see ClassRouting
+    private final ClassRouting routing = new ClassRouting()
 
     public static DexGroovyClassloader getInstance(Context context,
                                                    File unitFile,
-                                                   CompilerConfiguration configuration = new CompilerConfiguration())
+                                                   CompilerConfiguration configuration = new CompilerConfiguration(),
+                                                   CompileProfile profile = CompileProfile.DEBUG)
     {
         DexGroovyClassloader classLoader
 
@@ -163,30 +245,109 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
 
             if (classLoader) return classLoader
 
-            classLoader = new DexGroovyClassloader(context, unitFile, configuration)
+            classLoader = new DexGroovyClassloader(context, unitFile, configuration, profile)
+
+            // lookups go without locks, so the loader must be fully set up before being published
+            classLoader.loadExistingDexFiles()
 
             cache.put(unitFile, classLoader)
         }
 
+        return classLoader
+    }
+
+    private void loadExistingDexFiles() {
         if (unitFile.parentFile.exists()) {
-            unitFile.parentFile.listFiles().each { File it ->
-                if (it.name.endsWith('.jar'))
-                    classLoader.dexClassPath.addLast(LoadedDex.loadDex(it.path, optimizedPathFor(it, unitFile.parentFile), 0))
+            def index = dependencies
+
+            def local = new HashSet<String>()
+
+            def unitDir = unitFile.parentFile
+
+            // another host may be running (and compiling) the same unit, see UnitFiles
+            UnitFiles.withLock(unitDir) {
+                unitDir.listFiles().each { File it ->
+                    if (!it.name.endsWith('.jar')) return
+
+                    if (it != unitFile && !index.isReferenced(it.name)) {
+                        // other versions of the unit jar may be in use elsewhere
+                        if (isUnitJar(it, unitDir.name)) return
+
+                        // holds classes of dependencies, which have since been changed or dexed elsewhere
+                        new File(optimizedPathFor(it, unitDir)).delete()
+                        it.delete()
+
+                        return
+                    }
+
+                    local << it.name
+
+                    addToClassPath(loadDexFile(it))
+                }
             }
-        }
 
-        return classLoader
+            def store = sharedStore
+            def unitId = unitFile.parentFile.name
+
+            unreadShrinkJars.putAll(index.partialJars)
+
+            shrinking = !unreadShrinkJars.isEmpty()
+
+            for (String dexJar : index.dexJars) {
+                if (dexJar in local) continue
+
+                def key = SharedDexStore.keyOf(dexJar)
+
+                def entry = key ? store.acquire(key, unitId) : null
+
+                if (entry) {
+                    if (entry.length() < UNDERSIZED_DEX_SIZE) undersized.incrementAndGet()
+
+                    addToClassPath(loadDexFile(entry))
+                } else {
+                    Log.w(TAG, "Shared Dex file $dexJar is gone, it's dependencies will be dexed again")
+
+                    index.forget(dexJar)
+                }
+            }
+
+            try {
+                index.save()
+            } catch (IOException ioe) {
+                Log.e(TAG, "Failed to save dependency index: $ioe")
+            }
+
+            saveClassIndex()
+        }
     }
 
     public static boolean cachedClassLoader(File unitFile) {
         return cache.containsKey(unitFile)
     }
 
+    /**
+     * Removes the class loader of the unit from cache and closes it. Classes, already loaded by it, stay in memory
+     */
+    static void discard(File unitFile) {
+        DexGroovyClassloader classLoader
+
+        synchronized (cache) {
+            classLoader = cache.remove(unitFile)
+        }
+
+        classLoader?.close()
+    }
+
     public static int getClassloadersCached() {
         return cache.size()
     }
 
-    private DexGroovyClassloader(Context context, File unitFile, CompilerConfiguration configuration) {
+    static Collection<DexGroovyClassloader> getCachedClassLoaders() {
+        return new ArrayList<DexGroovyClassloader>(cache.values())
+    }
+
+    private DexGroovyClassloader(Context context, File unitFile, CompilerConfiguration configuration,
+                                 CompileProfile profile) {
         super(DexGroovyClassloader.class.classLoader, configuration) // XXX: revise is case of multidex etc.
 
         configuration.bytecodePostprocessor = new BytecodeProcessor() {
@@ -195,8 +356,13 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
                 def dexerFile = new DirectClassFile(bytes, "${name.replace('.', '/')}.class", false)
                 dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
 
+                def started = LoaderMetrics.now()
+
                 def classDefItem = CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, dexFile)
 
+                metrics.add(LoaderMetrics.Phase.TRANSLATE, started)
+                metrics.count(LoaderMetrics.Counter.CLASSES_TRANSLATED)
+
                 dexFile.add(classDefItem)
                 classNames.add(name)
 
@@ -212,15 +378,11 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
 
         this.unitFile = unitFile
 
-        cfOptions.positionInfo = PositionList.LINES
-        cfOptions.localInfo = true
-        cfOptions.strictNameCheck = true
-        cfOptions.optimize = false
-        cfOptions.optimizeListFile = null
-        cfOptions.dontOptimizeListFile = null
-        cfOptions.statistics = false
+        this.dependencies = DependencyIndex.open(unitFile.parentFile, unitFile)
+
+        this.classIndex = ClassIndex.open(unitFile.parentFile)
 
-        dexOptions.targetApiLevel = DexFormat.API_NO_EXTENDED_OPCODES
+        DexerOptions.configure(cfOptions, dexOptions, profile)
     }
 
     // from dalvik/system/DexPathList.java
@@ -309,311 +471,1535 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
 
     @Override
     Class loadClass(String name, boolean lookupScriptFiles, boolean preferClassOverScript, boolean resolve) throws ClassNotFoundException, CompilationFailedException {
-        if (name.startsWith('java.')) return parent.loadClass(name)
+        if (routing.isParentOnly(name)) return routing.loadFromParent(parent, name)
 
         def found = findLoadedClass(name)
         if (found) return found
 
+        long generation = routing.generation
+
+        if (routing.isMissing(name, generation)) throw new ClassRouting.KnownMissingClassException(name)
+
+        def wanted = locallyWanted.get()
+
+        // recursive requests for a class, being dexed right now, are not misses
+        def reentrant = name in wanted
+
         found = findClass(name)
         if (found) return found
 
         try {
             return parent.loadClass(name)
+        } catch (ClassNotFoundException cnfe) {
+            if (!reentrant) routing.missing(name, generation)
+
+            throw cnfe
         } finally {
-            locallyWanted.get().remove(name)
+            wanted.remove(name)
         }
     }
 
-    private static final int CLASSES_IN_DEX_OPTIMAL = 70
+    /**
+     * Make classes, whose names start with specified prefix, load from parent class loader only
+     */
+    void addParentOnlyPrefix(String prefix) {
+        routing.addPrefix(prefix)
+    }
 
-    private final Lock lock = new ReentrantLock()
+    /**
+     * Make classes, whose names start with specified prefix, load from Dex files too
+     */
+    void removeParentOnlyPrefix(String prefix) {
+        routing.removePrefix(prefix)
+    }
 
-    @SuppressWarnings("GrDeprecatedAPIUsage")
-    private Class makeDexFilesForSakeOf(String name) {
-        def foundClass = null
+    private void classPathChanged() {
+        routing.classPathChanged()
+    }
 
-        def basedOn = new StringBuilder()
-        def createdDexFiles = new ArrayList<LoadedDex>()
+    private static final int CLASSES_PER_TASK = 32
 
-        DexFile inProgress = null
-        int classesWritten = 0
+    private static final int MAX_IDS_IN_DEX = DexFormat.MAX_MEMBER_IDX + 1
 
-        def reusableByteBuffer = new byte[4096]
-        def reusableByteStream = new ByteArrayOutputStream(4096)
+    private static final String SERVICES_DIR = 'META-INF/services/'
+    private static final String EXTENSION_MODULE_SERVICE = 'org.codehaus.groovy.runtime.ExtensionModule'
+    private static final String EXTENSION_MODULE = 'META-INF/groovy/' + EXTENSION_MODULE_SERVICE
 
-        def urlsIterator = pendingClasspath.iterator()
+    private static final int MAX_IDS_ADDED_DURING_DEX_CREATION = 9
 
-        while (urlsIterator.hasNext()) {
-            def anURL = urlsIterator.next()
-            urlsIterator.remove()
+    // shared Dex files below this size are merged together, when idle
+    private static final int UNDERSIZED_DEX_SIZE = 256 * 1024
 
-            def file = anURL as File
+    private static final int COMPACTED_DEX_SIZE = 4 * 1024 * 1024
 
-            // check if we have already dealt with this one in the past
-            def encodedDependencyName = nameUpTo(file, 4)
+    // undersized Dex files, worth compacting
+    private static final int COMPACTION_THRESHOLD = 4
 
-            def alreadyDexed = unitFile.parentFile.listFiles().find { File dexOrJar ->
-                if (dexOrJar.name.endsWith('.jar')) {
-                    return new ZipFile(dexOrJar).withCloseable {
-                        return it.comment.indexOf(encodedDependencyName) != -1
-                    }
-                }
+    // undersized Dex files, added since the last compaction
+    private final AtomicInteger undersized = new AtomicInteger()
 
-                return false
-            }
+    private final AtomicBoolean compactionQueued = new AtomicBoolean()
 
-            if (alreadyDexed) continue
+    /**
+     * Number of threads used to translate classes of added jars
+     */
+    static volatile int dexingParallelism = Runtime.runtime.availableProcessors()
 
-            try {
-                JarInputStream zipStream
-                if (anURL.endsWith('.jar')) {
-                    zipStream = new JarInputStream(new FileInputStream(file), false)
-                } else {
-                    zipStream = new JarInputStream(new URL("jar:" + file.toURL() + "!/classes.jar").openStream(), false)
-                }
+    private static volatile ExecutorService dexers
 
-                zipStream.withCloseable { zip ->
-                    JarEntry jarEntry
-                    while ((jarEntry = zip.nextJarEntry)) {
-                        if (jarEntry.directory || !jarEntry.name.endsWith('.class')) continue
+    // separate from dexers, because eager tasks take the dexing lock, while makePendingDexFiles waits for dexers
+    private static volatile ExecutorService eagerDexers
 
-                        reusableByteStream.reset()
+    // a single low-priority thread, so that compaction does not compete with dexing
+    private static volatile ExecutorService compactor
 
-                        int read
-                        while ((read = zip.read(reusableByteBuffer)) != -1) {
-                            reusableByteStream.write(reusableByteBuffer, 0, read)
-                        }
+    /**
+     * When set, grabbed jars are converted in background as soon as they are added
+     */
+    static volatile boolean eagerDexing = true
+
+    // classes of jars, which are being converted in background
+    private final Map<String, EagerJar> eagerJars = new ConcurrentHashMap<>()
 
-                        try {
-                            def bytes = reusableByteStream.toByteArray()
-                            def dexerFile = new DirectClassFile(bytes, jarEntry.name, true)
-                            dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
+    // jars, being converted in background, which could not be listed
+    private final Set<EagerJar> eagerUnlistedJars = Collections.newSetFromMap(new ConcurrentHashMap<EagerJar, Boolean>())
 
-                            if (!inProgress) inProgress = new DexFile(dexOptions)
+    private final Lock lock = new ReentrantLock()
 
-                            def classDefItem = CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, inProgress)
+    private static ExecutorService getDexers() {
+        if (dexers == null) {
+            synchronized (DexGroovyClassloader) {
+                if (dexers == null) {
+                    def threadCount = new AtomicInteger()
 
-                            inProgress.add(classDefItem)
-                            classesWritten++
-                        } catch (RuntimeException ditchTheClass) {
-                            // not PrintStackTrace, because the classes in the trace may not be "loaded" yet
+                    def pool = new ThreadPoolExecutor(dexingParallelism, dexingParallelism, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), { Runnable r ->
+                        new Thread(r, "Dexer thread #${threadCount.incrementAndGet()}")
+                    } as ThreadFactory)
 
-                            Log.e(TAG, "Failed to dex $jarEntry.name: $ditchTheClass")
-                        }
-                    }
-                }
+                    pool.allowCoreThreadTimeOut(true)
 
-                basedOn << encodedDependencyName
+                    dexers = pool
+                }
+            }
+        }
 
-                // flush the dex, if necessary
-                if (classesWritten >= CLASSES_IN_DEX_OPTIMAL) {
-                    def randomFile = "$unitFile.parent/${UUID.randomUUID()}.jar" as File
+        return dexers
+    }
 
-                    def bytes = inProgress.toDex(null, false); inProgress = null;
+    private static ExecutorService getEagerDexers() {
+        if (eagerDexers == null) {
+            synchronized (DexGroovyClassloader) {
+                if (eagerDexers == null) {
+                    def threadCount = new AtomicInteger()
 
-                    def androidDex = addToDexFiles(bytes, randomFile, basedOn)
+                    def pool = new ThreadPoolExecutor(dexingParallelism, dexingParallelism, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), { Runnable r ->
+                        new Thread(r, "Eager dexer thread #${threadCount.incrementAndGet()}")
+                    } as ThreadFactory)
 
-                    createdDexFiles << androidDex
+                    pool.allowCoreThreadTimeOut(true)
 
-                    classesWritten = 0
-                    basedOn = new StringBuilder()
+                    eagerDexers = pool
                 }
-            } catch (RuntimeException ditchTheJar) {
-                Log.e(TAG, "Failed to jar some files: $ditchTheJar")
             }
         }
 
-        if (!foundClass && inProgress && !inProgress.empty) {
-            def randomFile = "$unitFile.parent/${UUID.randomUUID()}.jar" as File
-
-            def bytes = inProgress.toDex(null, false); inProgress = null;
+        return eagerDexers
+    }
 
-            def androidDex = addToDexFiles(bytes, randomFile, basedOn)
+    /**
+     * Starts converting the jar in background
+     */
+    private void dexEagerly(String anURL) {
+        def file = anURL as File
 
-            createdDexFiles << androidDex
-        }
+        List<String> classNames = null
 
-        // add all created files atomically at once to prevent any kind of class loading recursion from busting us
-        createdDexFiles.each {
-            dexClassPath.addLast(it)
+        try {
+            classNames = listClasses(file)
+        } catch (IOException ioe) {
+            Log.w(TAG, "Failed to list classes of $file: $ioe")
         }
 
-        foundClass = findClass(name)
+        def eager = new EagerJar(classNames)
 
-        junk = lock // flush teh caches
-
-        return foundClass
-    }
+        eager.task = new FutureTask<Void>({
+            try {
+                dexJarEagerly(anURL)
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to dex $file in background, will retry on demand: $e")
 
-    private static String nameUpTo(File file, int depth) {
-        final StringBuilder name = new StringBuilder()
+                pendingClasspath.add(anURL)
 
-        for (int i = 0; i < depth; i++) {
-            name.insert(0, '/').insert(0, file.name)
+                // drop misses, cached meanwhile
+                classPathChanged()
+            } finally {
+                if (eager.classNames != null) {
+                    for (String className : eager.classNames) {
+                        eagerJars.remove(className, eager)
+                    }
+                } else {
+                    eagerUnlistedJars.remove(eager)
+                }
+            }
 
-            if (!file.parent)
-                break
+            return null
+        } as Callable<Void>)
 
-            file = file.parentFile
+        if (classNames != null) {
+            for (String className : classNames) {
+                eagerJars.put(className, eager)
+            }
+        } else {
+            eagerUnlistedJars.add(eager)
         }
 
-        return name.toString()
+        getEagerDexers().execute(eager.task)
     }
 
-    private LoadedDex addToDexFiles(byte[] classesDex, File file, CharSequence metadata) {
-        def backupFile = "${file.path}.bak" as File
-        if (backupFile.exists()) {
-            assert backupFile.delete()
-        }
+    /**
+     * @return names of classes in the jar, or in classes.jar of the .aar
+     */
+    private static List<String> listClasses(File file) throws IOException {
+        return new ZipFile(file).withCloseable { ZipFile zip ->
+            def names = new ArrayList<String>()
+
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.name.endsWith('.class')) {
+                    names << classNameOf(entry.name)
+                } else if (entry.name == 'classes.jar') {
+                    new ZipInputStream(zip.getInputStream(entry)).withCloseable { ZipInputStream nested ->
+                        ZipEntry nestedEntry
+                        while ((nestedEntry = nested.nextEntry) != null) {
+                            if (nestedEntry.name.endsWith('.class')) names << classNameOf(nestedEntry.name)
+                        }
+                    }
+                }
+            }
 
-        try {
-            def manifest = new Manifest()
+            return names
+        } as List<String>
+    }
 
-            def attrs = manifest.mainAttributes
-            attrs.put(MANIFEST_VERSION, '1.0')
-            attrs.put(CREATED_BY, 'dx ' + Version.VERSION)
-            attrs.putValue("Dex-Location", DexFormat.DEX_IN_JAR_NAME)
+    private static String classNameOf(String entryName) {
+        return entryName.substring(0, entryName.length() - '.class'.length()).replace('/', '.')
+    }
 
-            new FileOutputStream(backupFile).withCloseable { fos ->
-                new JarOutputStream(fos, manifest).withCloseable {
-                    it.comment = metadata
+    /**
+     * The same as {@link #makePendingDexFiles}, but for single jar
+     */
+    private void dexJarEagerly(String anURL) {
+        def started = SystemClock.elapsedRealtime()
 
-                    def classes = new JarEntry(DexFormat.DEX_IN_JAR_NAME)
-                    classes.size = classesDex.length
-                    it.putNextEntry(classes)
-                    it.write(classesDex)
-                    it.closeEntry()
-                    it.finish()
-                    it.flush()
-                    fos.flush()
-                    fos.close()
-                    it.close()
-                }
-            }
-        } catch (Exception e) {
-            assert backupFile.delete()
+        def file = anURL as File
 
-            throw e
+        def encodedDependencyName = nameUpTo(file, 4)
+
+        lock.lock()
+        try {
+            if (dependencies.lookup(encodedDependencyName, file) != null) return
+        } finally {
+            lock.unlock()
         }
 
-        assert backupFile.renameTo(file)
+        def jar = readJar(anURL, encodedDependencyName, dexOptionsFingerprint)
 
-        def resultDex = LoadedDex.loadDex(file.path, optimizedPathFor(file, unitFile.parentFile), 0)
+        def pending = new PendingDex(jar, dexOptions)
 
-        return resultDex
-    }
+        int classesWritten = 0
 
-    @Override
-    Class parseClass(GroovyCodeSource codeSource) throws CompilationFailedException {
-        classNames = [] as Set
-        dexFile = new DexFile(dexOptions)
+        if (!jar.shared && !jar.predexed) {
+            classesWritten = translate(pending, 0, jar.classNames.size())
+        }
 
-        Class result = super.parseClass(codeSource)
+        jar.classNames.clear()
+        jar.classBytes.clear()
 
-        dexFile = null;
-        classNames = null;
+        def entries = publishJar(pending, unitFile.parentFile.name)
 
-        return result
-    }
+        def createdDexFiles = entries.collect { File it -> loadDexFile(it) }
 
-    @Override
-    protected ClassCollector createCollector(CompilationUnit unit, SourceUnit su) {
-        return new DexFileCollector(this, unit, su)
-    }
+        lock.lock()
+        try {
+            dependencies.put(jar.encodedName, jar.file, jar.hash, entries.collect { File it -> it.name })
 
-    @Override
-    protected CompilationUnit createCompilationUnit(CompilerConfiguration config, CodeSource source) {
-        return new TwistedCompilationUnit(config, source, this)
-    }
+            addDexedDependencies(createdDexFiles)
+        } finally {
+            lock.unlock()
+        }
 
-    @Override
-    Enumeration<URL> getResources(String resName) throws IOException {
-        return parent.getResources(resName)
+        Log.i(TAG, "Eagerly dexed $classesWritten classes of $file.name into ${entries.size()} files in " +
+                "${SystemClock.elapsedRealtime() - started} ms")
     }
 
-    @Override
-    URL getResource(String resName) {
-        return parent.getResource(resName)
+    /**
+     * Waits for eager conversion of the jar, holding the class, if there is one
+     */
+    private void awaitEagerDexing(String className) throws InterruptedException {
+        def eager = eagerJars.get(className)
+
+        if (eager) {
+            awaitEagerDexing(eager)
+        } else {
+            for (EagerJar unlisted : eagerUnlistedJars) {
+                awaitEagerDexing(unlisted)
+            }
+        }
     }
 
-    @Override
-    URL findResource(String name) {
-        throw new IllegalStateException('Must not be called')
+    private static void awaitEagerDexing(EagerJar eager) throws InterruptedException {
+        try {
+            eager.task.get()
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to dex some files", e.cause)
+        }
     }
 
-    @Override
-    void addURL(URL newUrl) {
-        super.addURL(newUrl)
+    private static final class EagerJar {
+        // null, if not known in advance
+        final List<String> classNames
 
-        assert newUrl.file?.endsWith('.jar') || newUrl.file?.endsWith('.aar') && !newUrl.protocol || 'file' == newUrl.protocol,
-                "$newUrl has unsupported type: only local .jar and .aar files are supported!"
+        FutureTask<Void> task
 
-        pendingClasspath.add(newUrl.file)
+        EagerJar(List<String> classNames) {
+            this.classNames = classNames
+        }
     }
 
-    @Override
-    public Class defineClass(String name, byte[] dalvikBytecode) {
-        throw new IllegalStateException('Must not be called')
-    }
+    /**
+     * Converts all pending jars, reading, translating and writing them in parallel
+     */
+    @SuppressWarnings("GrDeprecatedAPIUsage")
+    private void makePendingDexFiles() {
+        def started = SystemClock.elapsedRealtime()
 
-    @Override
-    Class defineClass(ClassNode classNode, String file, String newCodeBase) {
-        throw new IllegalStateException('Must not be called')
-    }
+        def fingerprint = dexOptionsFingerprint
 
-    @Override
-    protected Class<?> findClass(String className) throws ClassNotFoundException {
-        def wanted = locallyWanted.get()
+        def jarReads = new ArrayList<Future<PendingJar>>()
 
-        if (className in wanted) return null
+        def urlsIterator = pendingClasspath.iterator()
 
-        def found
-        lock.lockInterruptibly()
-        try {
+        while (urlsIterator.hasNext()) {
+            def anURL = urlsIterator.next()
+            urlsIterator.remove()
+
+            def file = anURL as File
+
+            // check if we have already dealt with this one in the past
+            def encodedDependencyName = nameUpTo(file, 4)
+
+            if (dependencies.lookup(encodedDependencyName, file) != null) continue
+
+            jarReads << submit({ readJar(anURL, encodedDependencyName, fingerprint) } as Callable<PendingJar>)
+        }
+
+        def batches = new ArrayList<PendingDex>()
+
+        for (Future<PendingJar> jarRead : jarReads) {
+            def jar = await(jarRead)
+
+            if (!jar) continue
+
+            if (shrinkDependencies && !jar.shared && !jar.predexed) {
+                // dexed piece by piece, see dexReachable
+                addToShrinkPool(jar)
+
+                dependencies.putPartial(jar.encodedName, jar.file, jar.hash)
+            } else {
+                batches << new PendingDex(jar, dexOptions)
+            }
+        }
+
+        def translations = new ArrayList<Future<Integer>>()
+
+        for (PendingDex batch : batches) {
+            if (batch.jar.shared || batch.jar.predexed) continue
+
+            def target = batch
+
+            for (int i = 0; i < batch.jar.classNames.size(); i += CLASSES_PER_TASK) {
+                def from = i
+                def to = Math.min(i + CLASSES_PER_TASK, batch.jar.classNames.size())
+
+                translations << submit({ translate(target, from, to) } as Callable<Integer>)
+            }
+        }
+
+        int classesWritten = 0
+
+        for (Future<Integer> translation : translations) {
+            classesWritten += await(translation) ?: 0
+        }
+
+        def unitId = unitFile.parentFile.name
+
+        def writes = new ArrayList<Future<List<File>>>()
+
+        for (PendingDex batch : batches) {
+            def finished = batch
+
+            finished.jar.classNames.clear()
+            finished.jar.classBytes.clear()
+
+            writes << submit({ publishJar(finished, unitId) } as Callable<List<File>>)
+        }
+
+        def createdDexFiles = new ArrayList<LoadedDex>()
+
+        int reused = 0, predexed = 0
+
+        def loadStarted = SystemClock.elapsedRealtime()
+
+        for (int i = 0; i < writes.size(); i++) {
+            def entries = await(writes.get(i))
+
+            if (!entries) continue
+
+            for (File entry : entries) {
+                createdDexFiles << loadDexFile(entry)
+            }
+
+            def jar = batches.get(i).jar
+
+            if (jar.shared) reused += entries.size()
+
+            if (jar.predexed) predexed += entries.size()
+
+            dependencies.put(jar.encodedName, jar.file, jar.hash, entries.collect { File it -> it.name })
+        }
+
+        def loadTime = SystemClock.elapsedRealtime() - loadStarted
+
+        Log.i(TAG, "Dexed $classesWritten classes into ${createdDexFiles.size() - reused - predexed} files (reused " +
+                "$reused shared and $predexed pre-dexed ones) in ${SystemClock.elapsedRealtime() - started} ms " +
+                "using $dexingParallelism threads; writing took ${writeMillis.getAndSet(0)} ms, loading took " +
+                "$loadTime ms (${rawDexOutput ? 'raw dex' : 'jar'} format)")
+
+        addDexedDependencies(createdDexFiles)
+    }
+
+    /**
+     * Saves the dependency index, drops outdated Dex files and adds newly created ones. Must be called under the
+     * dexing lock
+     */
+    private void addDexedDependencies(List<LoadedDex> createdDexFiles) {
+        def stale = dependencies.takeStale()
+
+        try {
+            dependencies.save()
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to save dependency index: $ioe")
+        }
+
+        if (stale) {
+            // do not let outdated classes shadow the new ones
+            def outdated = new ArrayList<LoadedDex>()
+
+            def dexCount = dexClassPath.size()
+            dexCount.times {
+                def dex = dexClassPath.popFirst()
+
+                if (new File(dex.name).name in stale) outdated << dex else dexClassPath.addLast(dex)
+            }
+
+            classLocations.values().removeAll(outdated)
+
+            // bring back classes, previously shadowed by outdated ones
+            for (int i = 0; i < dexClassPath.size(); i++) {
+                indexClasses(dexClassPath.get(i))
+            }
+
+            try {
+                sharedStore.release(unitFile.parentFile.name, stale)
+            } catch (IOException ioe) {
+                Log.e(TAG, "Failed to release outdated Dex files: $ioe")
+            }
+        }
+
+        // add all created files atomically at once to prevent any kind of class loading recursion from busting us
+        createdDexFiles.each {
+            addToClassPath(it)
+        }
+
+        saveClassIndex()
+
+        junk = lock // flush teh caches
+    }
+
+    /**
+     * Describes everything, that affects the output of dx besides the input itself
+     */
+    private String getDexOptionsFingerprint() {
+        return "dx $Version.VERSION; api $dexOptions.targetApiLevel; positions $cfOptions.positionInfo; " +
+                "locals $cfOptions.localInfo; optimize $cfOptions.optimize; strict $cfOptions.strictNameCheck"
+    }
+
+    private SharedDexStore getSharedStore() {
+        return sharedStoreFor(context)
+    }
+
+    static SharedDexStore sharedStoreFor(Context context) {
+        return new SharedDexStore(new File(new ContextCompat().getCodeCacheDir(context), SharedDexStore.DIR_NAME))
+    }
+
+    /**
+     * Drops references of the unit to shared Dex files, must be called before removing the unit directory
+     */
+    static void releaseSharedDexFiles(Context context, File unitDir) {
+        if (!unitDir.exists()) return
+
+        def index = DependencyIndex.open(unitDir, null)
+
+        sharedStoreFor(context).release(unitDir.name, index.dexJars)
+    }
+
+    private void addToShrinkPool(PendingJar jar) {
+        for (int i = 0; i < jar.classNames.size(); i++) {
+            def entryName = jar.classNames.get(i)
+
+            def className = entryName.substring(0, entryName.length() - '.class'.length()).replace('/', '.')
+
+            // already dexed during earlier runs
+            if (classLocations.containsKey(className)) continue
+
+            shrinkPool.put(className, new PooledClass(jar, entryName, jar.classBytes.get(i)))
+        }
+
+        pendingRoots.addAll(jar.roots)
+
+        jar.classNames.clear()
+        jar.classBytes.clear()
+
+        shrinking = true
+    }
+
+    /**
+     * Dexes the class together with all classes of partially dexed jars, that can be reached from it via references
+     * in constant pools (plus classes from service descriptors, which can not be reached that way). Anything missed
+     * gets here again, when it is looked up.
+     */
+    private void dexReachable(String className) {
+        def started = SystemClock.elapsedRealtime()
+
+        if (unreadShrinkJars) {
+            for (Map.Entry<String, File> unread : unreadShrinkJars.entrySet()) {
+                if (!unread.value.exists()) continue
+
+                def jar = new PendingJar(unread.key, unread.value, null, null, false)
+
+                readClasses(jar)
+
+                addToShrinkPool(jar)
+            }
+
+            unreadShrinkJars.clear()
+        }
+
+        def queue = new ArrayDeque<String>(pendingRoots)
+        queue.add(className)
+
+        pendingRoots.clear()
+
+        def selected = new LinkedHashMap<PendingJar, PendingJar>()
+
+        String next
+        while ((next = queue.poll()) != null) {
+            def pooled = shrinkPool.remove(next)
+
+            if (!pooled) continue
+
+            def part = selected.get(pooled.jar)
+
+            if (!part) {
+                part = new PendingJar(pooled.jar.encodedName, pooled.jar.file, pooled.jar.hash, null, false)
+
+                selected.put(pooled.jar, part)
+            }
+
+            part.classNames << pooled.entryName
+            part.classBytes << pooled.bytes
+
+            try {
+                addReferences(pooled.entryName, pooled.bytes, queue)
+            } catch (RuntimeException ignored) {
+                // will be reported by translate
+            }
+        }
+
+        shrinking = !shrinkPool.isEmpty()
+
+        if (!selected) return
+
+        def batches = new ArrayList<PendingDex>()
+        def translations = new ArrayList<Future<Integer>>()
+
+        for (PendingJar jar : selected.values()) {
+            def target = new PendingDex(jar, dexOptions)
+
+            batches << target
+
+            for (int i = 0; i < jar.classNames.size(); i += CLASSES_PER_TASK) {
+                def from = i
+                def to = Math.min(i + CLASSES_PER_TASK, jar.classNames.size())
+
+                translations << submit({ translate(target, from, to) } as Callable<Integer>)
+            }
+        }
+
+        int classesWritten = 0
+
+        for (Future<Integer> translation : translations) {
+            classesWritten += await(translation) ?: 0
+        }
+
+        def createdDexFiles = new ArrayList<LoadedDex>()
+
+        for (PendingDex batch : batches) {
+            for (DexFile part : batch.parts) {
+                if (part.empty) continue
+
+                def file = "$unitFile.parent/${UUID.randomUUID()}.jar" as File
+
+                createdDexFiles << addToDexFiles(toDex(part), file, batch.jar.encodedName)
+
+                dependencies.append(batch.jar.encodedName, file.name)
+            }
+        }
+
+        try {
+            dependencies.save()
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to save dependency index: $ioe")
+        }
+
+        Log.i(TAG, "Dexed $classesWritten classes, reachable from $className, in " +
+                "${SystemClock.elapsedRealtime() - started} ms, ${shrinkPool.size()} classes left undexed")
+
+        createdDexFiles.each {
+            addToClassPath(it)
+        }
+
+        saveClassIndex()
+
+        junk = lock // flush teh caches
+    }
+
+    /**
+     * Adds names of all classes, referenced by the class (not counting annotations and generic signatures)
+     */
+    private static void addReferences(String entryName, byte[] bytes, Collection<String> names) {
+        def classFile = new DirectClassFile(bytes, entryName, false)
+        classFile.attributeFactory = StdAttributeFactory.THE_ONE
+
+        def pool = classFile.constantPool
+
+        for (int i = 1; i < pool.size(); i++) {
+            def constant = pool.getOrNull(i)
+
+            if (constant instanceof CstType) {
+                addReference((constant as CstType).classType, names)
+            } else if (constant instanceof CstFieldRef) {
+                addReference((constant as CstFieldRef).type, names)
+            } else if (constant instanceof CstBaseMethodRef) {
+                addReferences((constant as CstBaseMethodRef).prototype, names)
+            }
+        }
+
+        for (int i = 0; i < classFile.fields.size(); i++) {
+            addReference(classFile.fields.get(i).nat.fieldType, names)
+        }
+
+        for (int i = 0; i < classFile.methods.size(); i++) {
+            addReferences(classFile.methods.get(i).effectiveDescriptor, names)
+        }
+    }
+
+    private static void addReferences(Prototype prototype, Collection<String> names) {
+        addReference(prototype.returnType, names)
+
+        def parameters = prototype.parameterTypes
+
+        for (int i = 0; i < parameters.size(); i++) {
+            addReference(parameters.getType(i), names)
+        }
+    }
+
+    private static void addReference(Type type, Collection<String> names) {
+        while (type.array) type = type.componentType
+
+        if (type.reference) names << type.className.replace('/', '.')
+    }
+
+    /**
+     * Schedules {@link #compact} of cached class loaders with enough undersized Dex files. Call, when idle
+     */
+    static void compactWhenIdle() {
+        for (DexGroovyClassloader loader : cache.values()) {
+            def target = loader
+
+            if (target.undersized.get() < COMPACTION_THRESHOLD || !target.compactionQueued.compareAndSet(false, true))
+                continue
+
+            getCompactor().execute {
+                try {
+                    target.compact()
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Failed to compact Dex files of $target.unitFile: $ioe")
+                } finally {
+                    target.compactionQueued.set(false)
+                }
+            }
+        }
+    }
+
+    private static ExecutorService getCompactor() {
+        if (compactor == null) {
+            synchronized (DexGroovyClassloader) {
+                if (compactor == null) {
+                    def pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), { Runnable r ->
+                        new Thread({
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+
+                            r.run()
+                        } as Runnable, 'Dex compactor thread')
+                    } as ThreadFactory)
+
+                    pool.allowCoreThreadTimeOut(true)
+
+                    compactor = pool
+                }
+            }
+        }
+
+        return compactor
+    }
+
+    /**
+     * Merges undersized shared Dex files of the unit into shared bundles; takes effect in the next process
+     */
+    void compact() throws IOException {
+        List<String> candidates
+        long generation
+        int counted
+
+        // not idle after all
+        if (!lock.tryLock()) return
+
+        try {
+            if (pendingClasspath) return
+
+            generation = routing.generation
+
+            candidates = new ArrayList<String>(dependencies.dexJars)
+
+            counted = undersized.get()
+        } finally {
+            lock.unlock()
+        }
+
+        def started = SystemClock.elapsedRealtime()
+
+        def store = sharedStore
+
+        candidates.retainAll { String dexJar ->
+            def entry = new File(store.dir, dexJar)
+
+            entry.exists() && entry.length() < UNDERSIZED_DEX_SIZE
+        }
+
+        Collections.sort(candidates)
+
+        def groups = new ArrayList<List<Dex>>()
+        def groupNames = new ArrayList<List<String>>()
+
+        List<Dex> group = null
+        int methods = 0, fields = 0, types = 0, size = 0
+
+        for (String dexJar : candidates) {
+            def dex = new Dex(new File(store.dir, dexJar))
+
+            def toc = dex.tableOfContents
+
+            if (group == null || methods + toc.methodIds.size > MAX_IDS_IN_DEX ||
+                    fields + toc.fieldIds.size > MAX_IDS_IN_DEX || types + toc.typeIds.size > MAX_IDS_IN_DEX ||
+                    size + dex.length > COMPACTED_DEX_SIZE) {
+                groups << (group = new ArrayList<Dex>())
+                groupNames << new ArrayList<String>()
+
+                methods = fields = types = size = 0
+            }
+
+            group << dex
+            groupNames.last() << dexJar
+
+            // merging removes duplicate references, so these are upper bounds
+            methods += toc.methodIds.size
+            fields += toc.fieldIds.size
+            types += toc.typeIds.size
+            size += dex.length
+        }
+
+        def unitId = unitFile.parentFile.name
+
+        // bundle names by names of merged Dex files
+        def merges = new LinkedHashMap<List<String>, String>()
+
+        try {
+            for (int i = 0; i < groups.size(); i++) {
+                def names = groupNames.get(i)
+
+                if (names.size() < 2) continue
+
+                def key = SharedDexStore.bundleKey(names)
+
+                def bundle = store.acquire(key, unitId)
+
+                if (!bundle) {
+                    def dexes = groups.get(i)
+
+                    def merged = dexes.first()
+                    for (int j = 1; j < dexes.size(); j++) {
+                        merged = new DexMerger(merged, dexes.get(j), CollisionPolicy.KEEP_FIRST).merge()
+                    }
+
+                    bundle = publishDex(merged.bytes, key, names.join(','), unitId)
+                }
+
+                merges.put(names, bundle.name)
+            }
+        } catch (IOException ioe) {
+            store.release(unitId, new HashSet<String>(merges.values()))
+
+            throw ioe
+        }
+
+        if (!merges) {
+            // nothing to merge them with yet
+            undersized.addAndGet(-counted)
+
+            return
+        }
+
+        def released = new HashSet<String>()
+
+        boolean swapped = false
+
+        lock.lock()
+        try {
+            if (generation != routing.generation || pendingClasspath) {
+                Log.i(TAG, "Class path of $unitFile has changed, while compacting it, discarding the bundles")
+
+                released.addAll(merges.values())
+            } else {
+                swapped = true
+
+                for (Map.Entry<List<String>, String> merge : merges.entrySet()) {
+                    released.addAll(dependencies.replace(merge.key, merge.value))
+                }
+
+                dependencies.save()
+
+                undersized.addAndGet(-counted)
+            }
+        } finally {
+            lock.unlock()
+        }
+
+        store.release(unitId, released)
+
+        if (!swapped) return
+
+        Log.i(TAG, "Compacted ${released.size()} Dex files of $unitFile into ${merges.size()} in " +
+                "${SystemClock.elapsedRealtime() - started} ms")
+    }
+
+    private static <T> Future<T> submit(Callable<T> task) {
+        if (dexingParallelism > 1) {
+            return getDexers().submit(task)
+        }
+
+        def result = new FutureTask<T>(task)
+
+        result.run()
+
+        return result
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get()
+        } catch (InterruptedException ie) {
+            future.cancel(true)
+
+            throw ie
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Failed to dex some files: $ee.cause")
+
+            return null
+        }
+    }
+
+    private PendingJar readJar(String anURL, String encodedName, String fingerprint) {
+        def file = anURL as File
+
+        def hash = DependencyIndex.hash(file)
+
+        def key = SharedDexStore.keyFor(hash, fingerprint)
+
+        def result = new PendingJar(encodedName, file, hash, key, sharedStore.contains(key))
+
+        if (!result.shared) readContents(result)
+
+        return result
+    }
+
+    /**
+     * Reads Dex files of the jar, if it already has those, or it's class files otherwise
+     */
+    private static void readContents(PendingJar jar) {
+        new ZipFile(jar.file).withCloseable { ZipFile zip ->
+            // classes.dex, classes2.dex, ... in that order, just like multidex does
+            for (int i = 1; ; i++) {
+                def entry = zip.getEntry(i > 1 ? "classes${i}.dex" : DexFormat.DEX_IN_JAR_NAME)
+
+                if (!entry) break
+
+                jar.dexBytes << zip.getInputStream(entry).withCloseable { InputStream it -> it.bytes }
+            }
+        }
+
+        if (!jar.predexed) readClasses(jar)
+    }
+
+    private static void readClasses(PendingJar result) {
+        def file = result.file
+        def anURL = file.path
+
+        def reusableByteBuffer = new byte[4096]
+        def reusableByteStream = new ByteArrayOutputStream(4096)
+
+        JarInputStream zipStream
+        if (anURL.endsWith('.jar')) {
+            zipStream = new JarInputStream(new FileInputStream(file), false)
+        } else {
+            zipStream = new JarInputStream(new URL("jar:" + file.toURL() + "!/classes.jar").openStream(), false)
+        }
+
+        zipStream.withCloseable { zip ->
+            JarEntry jarEntry
+            while ((jarEntry = zip.nextJarEntry)) {
+                if (jarEntry.directory) continue
+
+                def isClass = jarEntry.name.endsWith('.class')
+
+                if (!isClass && !jarEntry.name.startsWith(SERVICES_DIR) && jarEntry.name != EXTENSION_MODULE) continue
+
+                reusableByteStream.reset()
+
+                int read
+                while ((read = zip.read(reusableByteBuffer)) != -1) {
+                    reusableByteStream.write(reusableByteBuffer, 0, read)
+                }
+
+                if (isClass) {
+                    result.classNames << jarEntry.name
+                    result.classBytes << reusableByteStream.toByteArray()
+                } else {
+                    readRoots(jarEntry.name, reusableByteStream.toString('UTF-8'), result.roots)
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects names of classes, which are instantiated reflectively, from service and extension module descriptors
+     */
+    private static void readRoots(String entryName, String descriptor, Collection<String> roots) {
+        if (entryName == EXTENSION_MODULE || entryName == SERVICES_DIR + EXTENSION_MODULE_SERVICE) {
+            def props = new Properties()
+            props.load(new StringReader(descriptor))
+
+            for (String key : ['extensionClasses', 'staticExtensionClasses']) {
+                props.getProperty(key, '').split(',').each { String it -> if (it.trim()) roots << it.trim() }
+            }
+        } else {
+            descriptor.eachLine { String line ->
+                def className = line.replaceFirst('#.*', '').trim()
+
+                if (className) roots << className
+            }
+        }
+    }
+
+    private int translate(PendingDex target, int from, int to) {
+        int translated = 0
+
+        def jar = target.jar
+
+        for (int i = from; i < to; i++) {
+            def entryName = jar.classNames.get(i)
+
+            try {
+                def bytes = jar.classBytes.get(i)
+                def dexerFile = new DirectClassFile(bytes, entryName, true)
+                dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
+
+                // the worst case, as estimated by dx in multidex mode
+                def estimate = dexerFile.constantPool.size() + Math.max(dexerFile.methods.size(), dexerFile.fields.size()) +
+                        MAX_IDS_ADDED_DURING_DEX_CREATION
+
+                def part = target.reserve(estimate)
+                try {
+                    def started = LoaderMetrics.now()
+
+                    def classDefItem = CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, part)
+
+                    metrics.add(LoaderMetrics.Phase.TRANSLATE, started)
+
+                    synchronized (part) {
+                        part.add(classDefItem)
+                    }
+                } finally {
+                    target.release(part, estimate)
+                }
+
+                translated++
+
+                metrics.count(LoaderMetrics.Counter.CLASSES_TRANSLATED)
+            } catch (RuntimeException ditchTheClass) {
+                // not PrintStackTrace, because the classes in the trace may not be "loaded" yet
+
+                Log.e(TAG, "Failed to dex $entryName: $ditchTheClass")
+            }
+        }
+
+        return translated
+    }
+
+    /**
+     * Publishes translated jar or acquires the shared one, translating it after all, if it has vanished since
+     */
+    private List<File> publishJar(PendingDex finished, String unitId) {
+        if (!finished.jar.shared) return publishParts(finished, unitId)
+
+        def entries = sharedStore.acquireAll(finished.jar.key, unitId)
+
+        if (entries) return entries
+
+        // removed by the last unit, referencing it, in the meantime
+        def again = new PendingDex(finished.jar, dexOptions)
+
+        readContents(again.jar)
+        translate(again, 0, again.jar.classNames.size())
+
+        again.jar.classNames.clear()
+        again.jar.classBytes.clear()
+
+        return publishParts(again, unitId)
+    }
+
+    /**
+     * Writes and publishes all parts of the jar, the last one first, so that presence of the first part in
+     * {@link SharedDexStore} means presence of all of them
+     */
+    private List<File> publishParts(PendingDex dex, String unitId) {
+        List<byte[]> dexes
+
+        if (dex.jar.predexed) {
+            dexes = new ArrayList<>(dex.jar.dexBytes)
+
+            dex.jar.dexBytes.clear()
+        } else {
+            dexes = dex.parts.findAll { DexFile it -> !it.empty }.collect { DexFile it -> toDex(it) }
+        }
+
+        def entries = new File[dexes.size()]
+
+        for (int i = dexes.size() - 1; i >= 0; i--) {
+            entries[i] = publishDex(dexes.get(i), SharedDexStore.partKey(dex.jar.key, i), dex.jar.encodedName, unitId)
+
+            if (dexes.get(i).length < UNDERSIZED_DEX_SIZE) undersized.incrementAndGet()
+        }
+
+        return entries as List<File>
+    }
+
+    /**
+     * Writes an entry of {@link SharedDexStore} in the format, selected by {@link #rawDexOutput}
+     */
+    private File publishDex(byte[] classesDex, String key, CharSequence metadata, String unitId) {
+        def started = SystemClock.elapsedRealtime()
+
+        def raw = rawDexOutput
+
+        def store = sharedStore
+
+        def prepared = store.prepare(key)
+
+        def writeStarted = LoaderMetrics.now()
+
+        if (raw) {
+            writeRawDex(classesDex, prepared)
+        } else {
+            writeDexJar(classesDex, prepared, metadata)
+        }
+
+        metrics.add(LoaderMetrics.Phase.WRITE, writeStarted)
+
+        def entry = store.publish(key, prepared, unitId, raw)
+
+        writeMillis.addAndGet(SystemClock.elapsedRealtime() - started)
+
+        return entry
+    }
+
+    private static final class PendingJar {
+        final String encodedName
+        final File file
+        final String hash
+        final String key
+        final boolean shared
+
+        final List<String> classNames = new ArrayList<>()
+        final List<byte[]> classBytes = new ArrayList<>()
+
+        // classes, that may be loaded reflectively, see readRoots
+        final List<String> roots = new ArrayList<>()
+
+        // contents of Dex files, if the jar already has those
+        final List<byte[]> dexBytes = new ArrayList<>()
+
+        boolean isPredexed() {
+            return !dexBytes.isEmpty()
+        }
+
+        PendingJar(String encodedName, File file, String hash, String key, boolean shared) {
+            this.encodedName = encodedName
+            this.file = file
+            this.hash = hash
+            this.key = key
+            this.shared = shared
+        }
+    }
+
+    private static final class PooledClass {
+        final PendingJar jar
+        final String entryName
+        final byte[] bytes
+
+        PooledClass(PendingJar jar, String entryName, byte[] bytes) {
+            this.jar = jar
+            this.entryName = entryName
+            this.bytes = bytes
+        }
+    }
+
+    /**
+     * Dex files, made of single jar
+     */
+    private static final class PendingDex {
+        final PendingJar jar
+
+        final List<DexFile> parts = new ArrayList<>()
+
+        private final DexOptions options
+
+        // references of classes, being translated into the last part
+        private int reserved
+
+        PendingDex(PendingJar jar, DexOptions options) {
+            this.jar = jar
+            this.options = options
+        }
+
+        synchronized DexFile reserve(int estimate) {
+            def part = parts ? parts.last() : null
+
+            if (!part || !isEmpty(part) && idCount(part) + reserved + estimate > MAX_IDS_IN_DEX) {
+                parts << (part = new DexFile(options))
+
+                reserved = 0
+            }
+
+            reserved += estimate
+
+            return part
+        }
+
+        synchronized void release(DexFile part, int estimate) {
+            if (part.is(parts.last())) reserved -= estimate
+        }
+
+        // workers intern under the same monitors
+        private static int idCount(DexFile part) {
+            synchronized (part) {
+                int methods, fields
+
+                synchronized (part.methodIds) {
+                    methods = part.methodIds.items().size()
+                }
+
+                synchronized (part.fieldIds) {
+                    fields = part.fieldIds.items().size()
+                }
+
+                return Math.max(methods, fields)
+            }
+        }
+
+        private static boolean isEmpty(DexFile part) {
+            synchronized (part) {
+                return part.empty
+            }
+        }
+    }
+
+    private void addToClassPath(LoadedDex dex) {
+        dexClassPath.addLast(dex)
+
+        indexClasses(dex)
+
+        classPathChanged()
+    }
+
+    private void indexClasses(LoadedDex dex) {
+        def jar = new File(dex.name)
+
+        def classes = classIndex.lookup(jar)
+
+        if (classes == null) {
+            classes = Collections.list(dex.entries()) as String[]
+
+            classIndex.put(jar, classes)
+        }
+
+        for (String className : classes) {
+            // the first Dex file to define a class wins, just like it would in a regular class path
+            classLocations.putIfAbsent(className, dex)
+        }
+    }
+
+    private void saveClassIndex() {
+        def jarNames = new ArrayList<String>(dexClassPath.size())
+
+        for (int i = 0; i < dexClassPath.size(); i++) {
+            jarNames << new File(dexClassPath.get(i).name).name
+        }
+
+        classIndex.retain(jarNames)
+
+        try {
+            classIndex.save()
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to save class index: $ioe")
+        }
+    }
+
+    private static String nameUpTo(File file, int depth) {
+        final StringBuilder name = new StringBuilder()
+
+        for (int i = 0; i < depth; i++) {
+            name.insert(0, '/').insert(0, file.name)
+
+            if (!file.parent)
+                break
+
+            file = file.parentFile
+        }
+
+        return name.toString()
+    }
+
+    private LoadedDex addToDexFiles(byte[] classesDex, File file, CharSequence metadata) {
+        def backupFile = "${file.path}.bak" as File
+        if (backupFile.exists()) {
+            assert backupFile.delete()
+        }
+
+        def started = LoaderMetrics.now()
+
+        writeDexJar(classesDex, backupFile, metadata)
+
+        assert backupFile.renameTo(file)
+
+        metrics.add(LoaderMetrics.Phase.WRITE, started)
+
+        return loadDexFile(file)
+    }
+
+    private byte[] toDex(DexFile dex) {
+        def started = LoaderMetrics.now()
+
+        def bytes = dex.toDex(null, false)
+
+        metrics.add(LoaderMetrics.Phase.TO_DEX, started)
+        metrics.count(LoaderMetrics.Counter.BYTES_DEXED, bytes.length)
+
+        return bytes
+    }
+
+    private static void writeDexJar(byte[] classesDex, File target, CharSequence metadata) {
+        try {
+            def manifest = new Manifest()
+
+            def attrs = manifest.mainAttributes
+            attrs.put(MANIFEST_VERSION, '1.0')
+            attrs.put(CREATED_BY, 'dx ' + Version.VERSION)
+            attrs.putValue("Dex-Location", DexFormat.DEX_IN_JAR_NAME)
+
+            new FileOutputStream(target).withCloseable { fos ->
+                new JarOutputStream(fos, manifest).withCloseable {
+                    it.comment = metadata
+
+                    def classes = new JarEntry(DexFormat.DEX_IN_JAR_NAME)
+                    classes.size = classesDex.length
+                    it.putNextEntry(classes)
+                    it.write(classesDex)
+                    it.closeEntry()
+                    it.finish()
+                    it.flush()
+                    fos.flush()
+                    fos.close()
+                    it.close()
+                }
+            }
+        } catch (Exception e) {
+            assert target.delete()
+
+            throw e
+        }
+    }
+
+    private static void writeRawDex(byte[] classesDex, File target) {
+        try {
+            new FileOutputStream(target).withCloseable { FileOutputStream fos ->
+                def channel = fos.channel
+
+                def buffer = ByteBuffer.wrap(classesDex)
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer)
+                }
+            }
+        } catch (Exception e) {
+            target.delete()
+
+            throw e
+        }
+    }
+
+    private LoadedDex loadDexFile(File file) {
+        def odex = new File(odexPathFor(file))
+
+        odex.parentFile.mkdirs()
+
+        def started = LoaderMetrics.now()
+
+        def dex = LoadedDex.loadDex(file.path, odex.path, 0)
+
+        metrics.add(LoaderMetrics.Phase.LOAD, started)
+        metrics.count(LoaderMetrics.Counter.DEX_FILES_MAPPED)
+        metrics.count(LoaderMetrics.Counter.DEX_BYTES_MAPPED, file.length())
+
+        return dex
+    }
+
+    /**
+     * @return path of optimized file for a jar or raw .dex file (the latter can not have it next to itself, because
+     * optimized files have the same .dex suffix)
+     */
+    static String odexPathFor(File file) {
+        def dir = file.name.endsWith(DEX_SUFFIX) ? new File(file.parentFile, OPTIMIZED_DIR) : file.parentFile
+
+        return optimizedPathFor(file, dir)
+    }
+
+    @Override
+    Class parseClass(GroovyCodeSource codeSource) throws CompilationFailedException {
+        classNames = [] as Set
+        dexFile = new DexFile(dexOptions)
+
+        Class result = super.parseClass(codeSource)
+
+        dexFile = null;
+        classNames = null;
+
+        return result
+    }
+
+    @Override
+    protected ClassCollector createCollector(CompilationUnit unit, SourceUnit su) {
+        return new DexFileCollector(this, unit, su)
+    }
+
+    @Override
+    protected CompilationUnit createCompilationUnit(CompilerConfiguration config, CodeSource source) {
+        return new TwistedCompilationUnit(config, source, this)
+    }
+
+    @Override
+    Enumeration<URL> getResources(String resName) throws IOException {
+        return parent.getResources(resName)
+    }
+
+    @Override
+    URL getResource(String resName) {
+        return parent.getResource(resName)
+    }
+
+    @Override
+    URL findResource(String name) {
+        throw new IllegalStateException('Must not be called')
+    }
+
+    @Override
+    void addURL(URL newUrl) {
+        super.addURL(newUrl)
+
+        assert newUrl.file?.endsWith('.jar') || newUrl.file?.endsWith('.aar') && !newUrl.protocol || 'file' == newUrl.protocol,
+                "$newUrl has unsupported type: only local .jar and .aar files are supported!"
+
+        if (eagerDexing && !shrinkDependencies && dexingParallelism > 1) {
+            dexEagerly(newUrl.file)
+        } else {
+            pendingClasspath.add(newUrl.file)
+        }
+
+        classPathChanged()
+    }
+
+    @Override
+    public Class defineClass(String name, byte[] dalvikBytecode) {
+        throw new IllegalStateException('Must not be called')
+    }
+
+    @Override
+    Class defineClass(ClassNode classNode, String file, String newCodeBase) {
+        throw new IllegalStateException('Must not be called')
+    }
+
+    @Override
+    protected Class<?> findClass(String className) throws ClassNotFoundException {
+        def wanted = locallyWanted.get()
+
+        if (className in wanted) return null
+
+        metrics.count(LoaderMetrics.Counter.CLASS_LOOKUPS)
+
+        Class found = null
+        try {
             // plz, be already loaded
             if ((found = findLoadedClass(className)))
                 return found
 
-            // asshole...
-
             wanted.add(className)
 
-            def dexCount = dexClassPath.size()
-            dexCount.times {
-                def got = dexClassPath.popLast()
+            // already dexed classes are looked up in parallel, without the dexing lock
+            def dex = classLocations.get(className)
+
+            if (dex) return (found = defineFromDex(dex, className))
 
-                dexClassPath.addFirst(got)
+            if (eagerJars || eagerUnlistedJars) {
+                awaitEagerDexing(className)
 
-                if (!found) found = got.loadClass(className, this)
+                // also covers the jar, that has been done right before the check
+                if ((dex = classLocations.get(className))) return (found = defineFromDex(dex, className))
             }
 
-            if (!pendingClasspath.isEmpty()) {
-                found = makeDexFilesForSakeOf(className)
+            if (pendingClasspath.isEmpty() && !shrinking) return null
+
+            // asshole...
+
+            lock.lockInterruptibly()
+            try {
+                // someone else might have dexed it while we were waiting
+                if (!classLocations.containsKey(className) && !pendingClasspath.isEmpty()) {
+                    makePendingDexFiles()
+                }
+
+                if (!classLocations.containsKey(className) && shrinking) {
+                    dexReachable(className)
+                }
+            } finally {
+                lock.unlock()
             }
 
-            return found
+            // defining classes may recursively ask for more classes, so it must not happen under the dexing lock
+            dex = classLocations.get(className)
+
+            return (found = dex ? defineFromDex(dex, className) : null)
         } finally {
-            if (found) wanted.remove(className)
+            if (found) {
+                wanted.remove(className)
+            } else {
+                metrics.count(LoaderMetrics.Counter.CLASS_MISSES)
+            }
+        }
+    }
 
-            lock.unlock()
+    private Class defineFromDex(LoadedDex dex, String className) {
+        while (true) {
+            def classLock = new Object()
+
+            def existingLock = classLoadingLocks.putIfAbsent(className, classLock)
+
+            if (existingLock) classLock = existingLock
+
+            synchronized (classLock) {
+                // removed by the previous owner, while we were waiting
+                if (classLoadingLocks.get(className) != classLock) continue
+
+                try {
+                    def found = findLoadedClass(className)
+
+                    if (found) return found
+
+                    found = dex.loadClass(className, this)
+
+                    if (found) metrics.count(LoaderMetrics.Counter.CLASSES_DEFINED)
+
+                    return found
+                } finally {
+                    classLoadingLocks.remove(className, classLock)
+                }
+            }
         }
     }
 
+    private static boolean isUnitJar(File jar, String unitId) {
+        return jar.name ==~ /${Pattern.quote(unitId)}(\.v\d+)?\.jar/
+    }
+
     static File makeUnitFile(Context context, String unitId) {
+        return makeUnitFile(context, unitId, 0)
+    }
+
+    /**
+     * @param version the version from {@link UnitStamp}, the first version has no suffix for compatibility
+     */
+    static File makeUnitFile(Context context, String unitId, int version) {
         def unitDir = new File(new ContextCompat().getCodeCacheDir(context), unitId)
 
         unitDir.mkdirs()
 
-        return "${unitDir}/${unitId}.jar" as File
+        return (version ? "${unitDir}/${unitId}.v${version}.jar" : "${unitDir}/${unitId}.jar") as File
     }
 
     @Override
     void close() throws IOException {
         classCache.clear()
 
-        def dexCount = dexClassPath.size()
-        dexCount.times {
-            dexClassPath.popLast().close()
+        lock.lock()
+        try {
+            classLocations.clear()
+
+            def dexCount = dexClassPath.size()
+            dexCount.times {
+                dexClassPath.popLast().close()
+            }
+        } finally {
+            lock.unlock()
         }
 
         closed = true
@@ -676,12 +2062,14 @@ final class DexGroovyClassloader extends GroovyClassLoader implements Closeable
                 return loadedClasses;
 
             try {
-                def androidDexFile = cl.addToDexFiles(cl.dexFile.toDex(null, false), cl.unitFile, su.name)
+                def androidDexFile = cl.addToDexFiles(cl.toDex(cl.dexFile), cl.unitFile, su.name)
 
                 try {
                     for (String className : cl.classNames) {
                         def tehClass = androidDexFile.loadClass(className, cl)
 
+                        if (tehClass) cl.metrics.count(LoaderMetrics.Counter.CLASSES_DEFINED)
+
                         loadedClasses.add(tehClass)
 
                         if (className == generatedClassName) {
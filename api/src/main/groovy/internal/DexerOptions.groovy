@@ -0,0 +1,61 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import com.android.dex.DexFormat
+import com.android.dx.dex.DexOptions
+import com.android.dx.dex.cf.CfOptions
+import com.android.dx.dex.code.PositionList
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+import net.sf.fakenames.api.CompileProfile
+
+/**
+ * Options of dx for each {@link CompileProfile}. Kept apart from the class loader, so that benchmarks, running on
+ * plain JVM, translate classes exactly the same way.
+ */
+@CompileStatic @PackageScope
+final class DexerOptions {
+    private DexerOptions() {}
+
+    static void configure(CfOptions cfOptions, DexOptions dexOptions, CompileProfile profile) {
+        def release = profile == CompileProfile.RELEASE
+
+        cfOptions.positionInfo = release ? PositionList.NONE : PositionList.LINES
+        cfOptions.localInfo = !release
+        cfOptions.strictNameCheck = true
+        cfOptions.optimize = release
+        cfOptions.optimizeListFile = null
+        cfOptions.dontOptimizeListFile = null
+        cfOptions.statistics = false
+
+        dexOptions.targetApiLevel = DexFormat.API_NO_EXTENDED_OPCODES
+    }
+}
@@ -321,6 +321,12 @@ final class GentleContextWrapper extends ContextWrapper {
     private static boolean undoCaches(GentleContextWrapper wrapper) {
         wrapper.externalCacheDir?.deleteDir() ?: Log.e(TAG, "Failed to delete external caches of $wrapper.uniqueId")
 
+        try {
+            DexGroovyClassloader.releaseSharedDexFiles(wrapper.baseContext, wrapper.ownCodeCacheDir)
+        } catch (IOException ioe) {
+            Log.e TAG, "Failed to release shared Dex files of $wrapper.uniqueId: $ioe"
+        }
+
         wrapper.ownCodeCacheDir.deleteDir() &&
                 wrapper.codeCacheDir.deleteDir() &&
                 wrapper.cacheDir.deleteDir()
@@ -0,0 +1,139 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Cumulative timers and counters of a class loader. Cheap enough to be always on: each measurement is a couple of
+ * {@link System#nanoTime} calls and an atomic add. Callers take a {@link #snapshot} before and after something and
+ * look at the difference.
+ *
+ * <p>
+ *
+ * Phases, which run on several threads at once (translation of jars), are summed over all threads, so those may
+ * add up to more than the wall time.
+ */
+@CompileStatic @PackageScope
+final class LoaderMetrics {
+    static enum Phase {
+        // resolving dependencies with Ivy
+        RESOLVE,
+        // parsing the script, including everything below, that happens meanwhile
+        COMPILE,
+        // CfTranslator.translate of script and dependency classes
+        TRANSLATE,
+        // DexFile.toDex
+        TO_DEX,
+        // writing Dex files
+        WRITE,
+        // LoadedDex.loadDex, including the optimization
+        LOAD,
+        // Script.run
+        RUN
+    }
+
+    static enum Counter {
+        CLASSES_TRANSLATED,
+        BYTES_DEXED,
+        DEX_FILES_MAPPED,
+        CLASS_LOOKUPS,
+        CLASS_MISSES,
+        // total size of Dex files, counted by DEX_FILES_MAPPED
+        DEX_BYTES_MAPPED,
+        // classes, defined from Dex files (not just found among already loaded ones)
+        CLASSES_DEFINED
+    }
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length)
+
+    private final AtomicLongArray counts = new AtomicLongArray(Counter.values().length)
+
+    static long now() {
+        return System.nanoTime()
+    }
+
+    void add(Phase phase, long startedNanos) {
+        nanos.addAndGet(phase.ordinal(), System.nanoTime() - startedNanos)
+    }
+
+    void count(Counter counter, long delta = 1) {
+        counts.addAndGet(counter.ordinal(), delta)
+    }
+
+    Snapshot snapshot() {
+        def phases = new long[nanos.length()]
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = nanos.get(i)
+        }
+
+        def counters = new long[counts.length()]
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = counts.get(i)
+        }
+
+        return new Snapshot(phases, counters)
+    }
+
+    static final class Snapshot {
+        private final long[] nanos
+        private final long[] counts
+
+        private Snapshot(long[] nanos, long[] counts) {
+            this.nanos = nanos
+            this.counts = counts
+        }
+
+        long nanos(Phase phase) {
+            return nanos[phase.ordinal()]
+        }
+
+        long count(Counter counter) {
+            return counts[counter.ordinal()]
+        }
+
+        Snapshot minus(Snapshot earlier) {
+            def phases = new long[nanos.length]
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = nanos[i] - earlier.nanos[i]
+            }
+
+            def counters = new long[counts.length]
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = counts[i] - earlier.counts[i]
+            }
+
+            return new Snapshot(phases, counters)
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+/**
+ * Memory, taken by cached class loaders, sampled without forcing garbage collection: size of mapped Dex files,
+ * number of defined classes and heap, retained by those classes. The latter is a rough per-class estimate, since
+ * heap can not be attributed to class loaders without a heap dump; classes can not be unloaded, so it only grows.
+ *
+ * <p>
+ *
+ * The process should be restarted, when any of figures exceeds the {@link #budget}. Used heap is checked too, but
+ * with a higher limit, because it includes garbage, which hasn't been collected yet.
+ */
+@CompileStatic @PackageScope
+final class MemoryAccounting {
+    // Class object, tables of methods and fields, static fields and meta class, on average
+    static final long CLASS_HEAP_ESTIMATE = 4096
+
+    static volatile Budget budget = new Budget(128L << 20, 20000, 0.5d, 0.9d)
+
+    private MemoryAccounting() {}
+
+    static Usage sample() {
+        def units = new ArrayList<UnitUsage>()
+
+        for (DexGroovyClassloader classLoader : DexGroovyClassloader.cachedClassLoaders) {
+            def counts = classLoader.metrics.snapshot()
+
+            units << new UnitUsage(classLoader.unitFile.parentFile.name,
+                    counts.count(LoaderMetrics.Counter.DEX_FILES_MAPPED),
+                    counts.count(LoaderMetrics.Counter.DEX_BYTES_MAPPED),
+                    counts.count(LoaderMetrics.Counter.CLASSES_DEFINED))
+        }
+
+        def vm = Runtime.runtime
+
+        return new Usage(units, vm.totalMemory() - vm.freeMemory(), vm.maxMemory())
+    }
+
+    static final class Budget {
+        final long mappedDexBytes
+        final long classes
+        // of maximum heap
+        final double retainedHeapRatio
+        final double usedHeapRatio
+
+        Budget(long mappedDexBytes, long classes, double retainedHeapRatio, double usedHeapRatio) {
+            this.mappedDexBytes = mappedDexBytes
+            this.classes = classes
+            this.retainedHeapRatio = retainedHeapRatio
+            this.usedHeapRatio = usedHeapRatio
+        }
+    }
+
+    static final class UnitUsage {
+        final String unit
+        final long dexFiles
+        final long mappedDexBytes
+        final long classes
+
+        UnitUsage(String unit, long dexFiles, long mappedDexBytes, long classes) {
+            this.unit = unit
+            this.dexFiles = dexFiles
+            this.mappedDexBytes = mappedDexBytes
+            this.classes = classes
+        }
+
+        long getRetainedHeap() {
+            return classes * CLASS_HEAP_ESTIMATE
+        }
+    }
+
+    static final class Usage {
+        final List<UnitUsage> units
+
+        final long usedHeap
+        final long maxHeap
+
+        Usage(List<UnitUsage> units, long usedHeap, long maxHeap) {
+            this.units = units
+            this.usedHeap = usedHeap
+            this.maxHeap = maxHeap
+        }
+
+        long getMappedDexBytes() {
+            long total = 0
+
+            for (UnitUsage unit : units) {
+                total += unit.mappedDexBytes
+            }
+
+            return total
+        }
+
+        long getClasses() {
+            long total = 0
+
+            for (UnitUsage unit : units) {
+                total += unit.classes
+            }
+
+            return total
+        }
+
+        long getRetainedHeap() {
+            return classes * CLASS_HEAP_ESTIMATE
+        }
+
+        /**
+         * @return the figure, which exceeds the budget, or null if none does
+         */
+        String exceeded(Budget budget) {
+            if (!units) return null
+
+            if (mappedDexBytes > budget.mappedDexBytes) return "$mappedDexBytes bytes of Dex files mapped"
+
+            if (classes > budget.classes) return "$classes classes defined"
+
+            if (retainedHeap > maxHeap * budget.retainedHeapRatio) return "~$retainedHeap bytes of heap retained by classes"
+
+            if (usedHeap > maxHeap * budget.usedHeapRatio) return "$usedHeap of $maxHeap bytes of heap used"
+
+            return null
+        }
+    }
+}
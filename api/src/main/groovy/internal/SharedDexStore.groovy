@@ -0,0 +1,260 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.security.MessageDigest
+
+/**
+ * Content-addressed store of Dex jars, shared by all units. An entry is keyed by hash of the source jar plus the
+ * options, used to dex it, so ten scripts, grabbing the same library, map the same Dex file instead of dexing it
+ * ten times over.
+ *
+ * <p>
+ *
+ * Each entry keeps a list of units, referencing it. An entry gets removed together with the last reference to it.
+ * The references are modified under a file lock, because units are cleaned up from a different process than the
+ * one dexing them.
+ *
+ * <p>
+ *
+ * Entries are either jars with classes.dex inside or raw .dex files, depending on how they have been written.
+ */
+@CompileStatic @PackageScope
+final class SharedDexStore {
+    static final String DIR_NAME = 'shared-dex'
+
+    static final String JAR_SUFFIX = '.jar'
+    static final String DEX_SUFFIX = '.dex'
+
+    private static final String REFS_SUFFIX = '.refs'
+
+    // file locks are held on behalf of whole process, so threads have to be serialized separately
+    private static final Object processLock = new Object()
+
+    final File dir
+
+    SharedDexStore(File dir) {
+        this.dir = dir
+    }
+
+    static String keyFor(String jarHash, String optionsFingerprint) {
+        def digest = MessageDigest.getInstance('SHA-1')
+
+        digest.update("$jarHash:$optionsFingerprint".getBytes('UTF-8'))
+
+        return DependencyIndex.toHex(digest.digest())
+    }
+
+    /**
+     * @return the key of n-th Dex file of a jar, which did not fit in one
+     */
+    static String partKey(String key, int part) {
+        return part ? "$key-${part + 1}" : key
+    }
+
+    /**
+     * @return the key of an entry, made by merging specified entries together
+     */
+    static String bundleKey(List<String> entryNames) {
+        def digest = MessageDigest.getInstance('SHA-1')
+
+        digest.update("bundle:${entryNames.join(',')}".getBytes('UTF-8'))
+
+        return DependencyIndex.toHex(digest.digest())
+    }
+
+    static String entryName(String key, boolean raw = false) {
+        return key + (raw ? DEX_SUFFIX : JAR_SUFFIX)
+    }
+
+    /**
+     * @return the key of entry with specified file name or null, if the name does not belong to an entry
+     */
+    static String keyOf(String entryName) {
+        if (entryName.endsWith(JAR_SUFFIX) || entryName.endsWith(DEX_SUFFIX)) {
+            return entryName.substring(0, entryName.length() - JAR_SUFFIX.length())
+        }
+
+        return null
+    }
+
+    /**
+     * @return the file of the entry in whatever format it exists, or the file of jar entry, if it does not
+     */
+    File entryFile(String key) {
+        def jar = new File(dir, entryName(key))
+
+        if (jar.exists()) return jar
+
+        def dex = new File(dir, entryName(key, true))
+
+        return dex.exists() ? dex : jar
+    }
+
+    boolean contains(String key) {
+        return entryFile(key).exists()
+    }
+
+    /**
+     * @return a file to write new entry into, before it is {@link #publish published}
+     */
+    File prepare(String key) {
+        ensureDir()
+
+        return new File(dir, "${key}.${UUID.randomUUID()}.tmp")
+    }
+
+    /**
+     * Moves prepared file into the store and adds a reference to it. If another unit has already published the same
+     * entry, the prepared file is discarded in favour of existing one (which may already be mapped by someone)
+     *
+     * @param raw whether the prepared file is a raw .dex file rather than a jar
+     *
+     * @return the file of the entry
+     */
+    File publish(String key, File prepared, String unitId, boolean raw = false) throws IOException {
+        File entry = null
+
+        withLock {
+            entry = entryFile(key)
+
+            if (entry.exists()) {
+                prepared.delete()
+            } else if (!prepared.renameTo(entry = new File(dir, entryName(key, raw)))) {
+                throw new IOException("Failed to move $prepared to $entry")
+            }
+
+            addReference(key, unitId)
+        }
+
+        return entry
+    }
+
+    /**
+     * @return the file of the entry or null, if the entry is gone
+     */
+    File acquire(String key, String unitId) throws IOException {
+        File entry = null
+
+        withLock {
+            entry = entryFile(key)
+
+            if (entry.exists()) addReference(key, unitId) else entry = null
+        }
+
+        return entry
+    }
+
+    /**
+     * Acquires all parts of the jar, see {@link #partKey}
+     *
+     * @return the files of all parts or null, if the entry is gone
+     */
+    List<File> acquireAll(String key, String unitId) throws IOException {
+        def entries = new ArrayList<File>()
+
+        withLock {
+            File entry
+            while ((entry = entryFile(partKey(key, entries.size()))).exists()) {
+                addReference(partKey(key, entries.size()), unitId)
+
+                entries << entry
+            }
+        }
+
+        return entries ?: null
+    }
+
+    /**
+     * Removes references of the unit to specified entries, deleting entries, which are no longer referenced
+     */
+    void release(String unitId, Collection<String> entryNames) throws IOException {
+        if (!dir.exists() || !entryNames) return
+
+        withLock {
+            for (String name : entryNames) {
+                def key = keyOf(name)
+
+                if (!key) continue
+
+                def refsFile = new File(dir, key + REFS_SUFFIX)
+
+                def refs = refsFile.exists() ? new LinkedHashSet<String>(refsFile.readLines('UTF-8')) : new LinkedHashSet<String>()
+
+                refs.remove(unitId)
+
+                if (refs) {
+                    refsFile.setText(refs.join('\n'), 'UTF-8')
+                } else {
+                    // it is safe to unlink a mapped file, unlike overwriting it
+                    def entry = entryFile(key)
+
+                    new File(DexGroovyClassloader.odexPathFor(entry)).delete()
+                    entry.delete()
+                    refsFile.delete()
+                }
+            }
+        }
+    }
+
+    private void addReference(String key, String unitId) {
+        def refsFile = new File(dir, key + REFS_SUFFIX)
+
+        def refs = refsFile.exists() ? new LinkedHashSet<String>(refsFile.readLines('UTF-8')) : new LinkedHashSet<String>()
+
+        if (refs.add(unitId)) refsFile.setText(refs.join('\n'), 'UTF-8')
+    }
+
+    private void withLock(Closure<?> action) throws IOException {
+        ensureDir()
+
+        synchronized (processLock) {
+            new RandomAccessFile(new File(dir, '.lock'), 'rw').withCloseable { RandomAccessFile raf ->
+                FileChannel channel = raf.channel
+
+                FileLock fileLock = channel.lock()
+                try {
+                    action.call()
+                } finally {
+                    fileLock.release()
+                }
+            }
+        }
+    }
+
+    private void ensureDir() throws IOException {
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) throw new IOException("Failed to create $dir")
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.nio.channels.FileLock
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Replaces and deletes files of a unit directory under a lock, held across processes: a retiring host and it's
+ * successor may run the same unit at once (see HostSlots).
+ */
+@CompileStatic @PackageScope
+final class UnitFiles {
+    static final String LOCK_FILE_NAME = '.lock'
+
+    // file locks are held on behalf of whole process, so threads have to be serialized separately
+    private static final Map<String, ReentrantLock> processLocks = new HashMap<>()
+
+    private UnitFiles() {}
+
+    /**
+     * Runs the action, holding the lock of unit directory; may be nested
+     */
+    static void withLock(File unitDir, Closure<?> action) throws IOException {
+        ReentrantLock processLock
+
+        synchronized (processLocks) {
+            processLock = processLocks.get(unitDir.path)
+
+            if (processLock == null) processLocks.put(unitDir.path, processLock = new ReentrantLock())
+        }
+
+        processLock.lock()
+        try {
+            if (processLock.holdCount > 1) {
+                action.call()
+
+                return
+            }
+
+            if (!unitDir.exists() && !unitDir.mkdirs() && !unitDir.exists()) throw new IOException("Failed to create $unitDir")
+
+            new RandomAccessFile(new File(unitDir, LOCK_FILE_NAME), 'rw').withCloseable { RandomAccessFile raf ->
+                FileLock fileLock = raf.channel.lock()
+                try {
+                    action.call()
+                } finally {
+                    fileLock.release()
+                }
+            }
+        } finally {
+            processLock.unlock()
+        }
+    }
+
+    /**
+     * Writes the contents to a temporary file of it's own and moves it in place of the file
+     *
+     * @param writer receives the OutputStream of the temporary file and closes it
+     */
+    static void replace(File file, Closure<?> writer) throws IOException {
+        withLock(file.parentFile) {
+            def tempFile = File.createTempFile(file.name, '.tmp', file.parentFile)
+            try {
+                writer.call(new FileOutputStream(tempFile))
+
+                if (!tempFile.renameTo(file)) throw new IOException("Failed to replace $file")
+            } finally {
+                tempFile.delete()
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.security.MessageDigest
+
+/**
+ * Describes, what a compiled unit has been compiled from: hashes of the script source and of compiler configuration,
+ * plus the version of unit jar, holding the result. Stored in unit directory as {@link #FILE_NAME}.
+ *
+ * <p>
+ *
+ * A unit, whose stamp matches the current source and configuration, can be loaded as-is, without parsing the script
+ * again. The version is bumped, when the script has to be recompiled while the previous unit jar is still loaded
+ * (Android VMs do not unload classes, so the new classes have to be defined by a new class loader from a new file).
+ */
+@CompileStatic @PackageScope
+final class UnitStamp {
+    static final String FILE_NAME = 'unit.properties'
+
+    private static final String SOURCE_HASH = 'source.hash'
+    private static final String CONFIG_HASH = 'config.hash'
+    private static final String VERSION = 'unit.version'
+
+    final String sourceHash
+    final String configHash
+    final int version
+
+    UnitStamp(String sourceHash, String configHash, int version) {
+        this.sourceHash = sourceHash
+        this.configHash = configHash
+        this.version = version
+    }
+
+    /**
+     * @return the stamp of unit or null, if the unit has never been compiled (or the stamp is unreadable)
+     */
+    static UnitStamp read(File unitDir) {
+        def file = new File(unitDir, FILE_NAME)
+
+        if (!file.exists()) return null
+
+        def props = new Properties()
+
+        try {
+            new FileInputStream(file).withCloseable { props.load(it) }
+
+            return new UnitStamp(
+                    props.getProperty(SOURCE_HASH),
+                    props.getProperty(CONFIG_HASH),
+                    Integer.parseInt(props.getProperty(VERSION, '0')))
+        } catch (IOException | NumberFormatException ignored) {
+            return null
+        }
+    }
+
+    void write(File unitDir) throws IOException {
+        def props = new Properties()
+        props.setProperty(SOURCE_HASH, sourceHash)
+        props.setProperty(CONFIG_HASH, configHash)
+        props.setProperty(VERSION, String.valueOf(version))
+
+        UnitFiles.replace(new File(unitDir, FILE_NAME)) { OutputStream os ->
+            os.withCloseable { props.store(os, null) }
+        }
+    }
+
+    boolean matches(String sourceHash, String configHash) {
+        return this.configHash == configHash && (sourceHash == null || this.sourceHash == sourceHash)
+    }
+
+    static String hash(byte[] data) {
+        def digest = MessageDigest.getInstance('SHA-1')
+
+        return DependencyIndex.toHex(digest.digest(data))
+    }
+
+    static String hash(String text) {
+        return hash(text.getBytes('UTF-8'))
+    }
+}
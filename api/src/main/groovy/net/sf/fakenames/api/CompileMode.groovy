@@ -0,0 +1,89 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.api
+
+import groovy.transform.CompileStatic
+import groovy.transform.TypeChecked
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer
+
+/**
+ * How a script is compiled. Dynamic scripts go through call site arrays on each call, which is especially slow on
+ * Dalvik; type-checked scripts are checked at compile time, but still dispatched dynamically; static scripts are
+ * compiled to direct calls.
+ *
+ * <p>
+ *
+ * A script may request the mode with a comment, named after corresponding annotation, before the first line of code:
+ *
+ * <pre>
+ * // @CompileStatic
+ * def list = [1, 2, 3]
+ * </pre>
+ */
+@CompileStatic
+enum CompileMode {
+    DYNAMIC('CompileDynamic'),
+    TYPE_CHECKED('TypeChecked'),
+    STATIC('CompileStatic')
+
+    final String directive
+
+    private CompileMode(String directive) {
+        this.directive = directive
+    }
+
+    void customize(CompilerConfiguration config) {
+        switch (this) {
+            case TYPE_CHECKED:
+                config.addCompilationCustomizers(new ASTTransformationCustomizer(TypeChecked))
+                break
+            case STATIC:
+                config.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic))
+                break
+        }
+    }
+
+    /**
+     * @return the mode, requested by leading comments of the script, or null if there is none
+     */
+    static CompileMode fromSource(String source) {
+        def directives = ScriptDirectives.read(source)
+
+        return values().find { CompileMode it -> it.directive in directives }
+    }
+
+    /**
+     * @return the mode with specified name or null, if there is no such mode
+     */
+    static CompileMode fromName(String name) {
+        return values().find { CompileMode it -> it.name() == name }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.api
+
+import groovy.transform.CompileStatic
+
+/**
+ * How compiled classes are converted to Dex format. Debug profile keeps line numbers and local variables and leaves
+ * the code as is; release profile strips those and runs dx optimizer (register allocation, dead code elimination
+ * etc.), producing smaller and faster code at the price of longer compilation and stack traces without line numbers.
+ *
+ * <p>
+ *
+ * Just like {@link CompileMode}, a script requests the profile with a comment before the first line of code,
+ * {@code // @Release} or {@code // @Debug}.
+ */
+@CompileStatic
+enum CompileProfile {
+    DEBUG('Debug'),
+    RELEASE('Release')
+
+    final String directive
+
+    private CompileProfile(String directive) {
+        this.directive = directive
+    }
+
+    /**
+     * @return the profile, requested by leading comments of the script, or null if there is none
+     */
+    static CompileProfile fromSource(String source) {
+        def directives = ScriptDirectives.read(source)
+
+        return values().find { CompileProfile it -> it.directive in directives }
+    }
+
+    /**
+     * @return the profile with specified name or null, if there is no such profile
+     */
+    static CompileProfile fromName(String name) {
+        return values().find { CompileProfile it -> it.name() == name }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.api
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.TimeUnit
+import java.util.regex.Pattern
+
+/**
+ * Limits of wall-clock time and CPU time (of the thread, running the script) for a single run of script; zero means
+ * no limit. A script, which exceeds either of them, gets interrupted.
+ *
+ * <p>
+ *
+ * Just like {@link CompileMode}, a script sets it's limits with comments before the first line of code, such as
+ * {@code // @WallTime 2m} and {@code // @CpuTime 500ms} (the unit is one of ms, s, m, seconds by default).
+ */
+@CompileStatic
+final class ScriptBudget {
+    static final String WALL_TIME = 'WallTime'
+    static final String CPU_TIME = 'CpuTime'
+
+    static final ScriptBudget UNLIMITED = new ScriptBudget(0, 0)
+
+    private static final Pattern DURATION = ~/(\d+)(ms|s|m)?/
+
+    final long wallMillis
+    final long cpuMillis
+
+    ScriptBudget(long wallMillis, long cpuMillis) {
+        this.wallMillis = wallMillis
+        this.cpuMillis = cpuMillis
+    }
+
+    /**
+     * @return limits, set by leading comments of the script, or null if there are none; the missing limit is taken
+     * from {@code defaults}
+     */
+    static ScriptBudget fromSource(String source, ScriptBudget defaults) {
+        def directives = ScriptDirectives.readValues(source)
+
+        def wall = parse(directives.get(WALL_TIME))
+        def cpu = parse(directives.get(CPU_TIME))
+
+        if (wall == -1 && cpu == -1) return null
+
+        return new ScriptBudget(wall != -1 ? wall : defaults.wallMillis, cpu != -1 ? cpu : defaults.cpuMillis)
+    }
+
+    private static long parse(String duration) {
+        if (!duration) return -1
+
+        def matcher = DURATION.matcher(duration)
+
+        if (!matcher.matches()) return -1
+
+        def value = Long.parseLong(matcher.group(1))
+
+        switch (matcher.group(2)) {
+            case 'ms':
+                return value
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(value)
+            default:
+                return TimeUnit.SECONDS.toMillis(value)
+        }
+    }
+
+    @Override
+    String toString() {
+        return "wall ${wallMillis ?: 'unlimited'} ms, cpu ${cpuMillis ?: 'unlimited'} ms"
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.api
+
+import groovy.transform.CompileStatic
+
+import java.util.regex.Pattern
+
+/**
+ * Reads directives, such as {@code // @CompileStatic} or {@code // @WallTime 30s}, from comments before the first
+ * line of script code
+ */
+@CompileStatic
+final class ScriptDirectives {
+    private static final Pattern DIRECTIVE = ~/^\s*\/\/\s*@(\w+)(?:\s+(\S+))?\s*$/
+
+    private ScriptDirectives() {}
+
+    /**
+     * @return names of all directives in leading comments of the script, without "@"
+     */
+    static List<String> read(String source) {
+        return new ArrayList<String>(readValues(source).keySet())
+    }
+
+    /**
+     * @return arguments of all directives in leading comments of the script by their names (without "@"), null for
+     * directives without argument
+     */
+    static Map<String, String> readValues(String source) {
+        def directives = new LinkedHashMap<String, String>()
+
+        for (String line : source.readLines()) {
+            def trimmed = line.trim()
+
+            if (!trimmed || trimmed.startsWith('#!')) continue
+
+            if (!trimmed.startsWith('//')) break
+
+            def matcher = DIRECTIVE.matcher(trimmed)
+
+            if (matcher.matches()) directives.put(matcher.group(1), matcher.group(2))
+        }
+
+        return directives
+    }
+}
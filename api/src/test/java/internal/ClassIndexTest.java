@@ -0,0 +1,137 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ClassIndexTest {
+    private static final String[] CLASSES = { "org.example.First", "org.example.First$Inner", "org.example.Second" };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File unitDir;
+    private File dexJar;
+
+    @Before
+    public void setUp() throws IOException {
+        unitDir = folder.newFolder("unit");
+
+        dexJar = new File(unitDir, "a.jar");
+        write(dexJar, "first");
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        ClassIndex index = ClassIndex.open(unitDir);
+
+        assertNull(index.lookup(dexJar));
+
+        index.put(dexJar, CLASSES);
+        index.save();
+
+        assertArrayEquals(CLASSES, ClassIndex.open(unitDir).lookup(dexJar));
+    }
+
+    @Test
+    public void forgetsRewrittenJar() throws IOException {
+        ClassIndex index = ClassIndex.open(unitDir);
+
+        index.put(dexJar, CLASSES);
+
+        write(dexJar, "second, longer");
+
+        assertNull(index.lookup(dexJar));
+    }
+
+    @Test
+    public void retainsOnlySpecifiedJars() throws IOException {
+        File other = new File(unitDir, "b.jar");
+        write(other, "other");
+
+        ClassIndex index = ClassIndex.open(unitDir);
+
+        index.put(dexJar, CLASSES);
+        index.put(other, new String[] { "org.example.Other" });
+
+        index.retain(Collections.singleton("b.jar"));
+        index.save();
+
+        ClassIndex reopened = ClassIndex.open(unitDir);
+
+        assertNull(reopened.lookup(dexJar));
+        assertArrayEquals(new String[] { "org.example.Other" }, reopened.lookup(other));
+    }
+
+    @Test
+    public void ignoresUnsupportedVersion() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(unitDir, ClassIndex.FILE_NAME)))) {
+            out.writeInt(2);
+            out.writeInt(0);
+        }
+
+        assertNull(ClassIndex.open(unitDir).lookup(dexJar));
+    }
+
+    @Test
+    public void leavesNoTemporaryFiles() throws IOException {
+        ClassIndex index = ClassIndex.open(unitDir);
+
+        index.put(dexJar, CLASSES);
+        index.save();
+
+        index.put(dexJar, new String[0]);
+        index.save();
+
+        for (String name : unitDir.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DependencyIndexTest {
+    private static final String DEPENDENCY = "org.example/lib/1.0/jar/";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File unitDir;
+    private File unitFile;
+    private File jar;
+
+    @Before
+    public void setUp() throws IOException {
+        unitDir = folder.newFolder("unit");
+        unitFile = new File(unitDir, "unit.jar");
+
+        jar = folder.newFile("lib.jar");
+        write(jar, "first");
+    }
+
+    @Test
+    public void putAndLookup() throws IOException {
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        assertNull(index.lookup(DEPENDENCY, jar));
+
+        index.put(DEPENDENCY, jar, DependencyIndex.hash(jar), Arrays.asList("a.jar", "b.jar"));
+
+        assertEquals(Arrays.asList("a.jar", "b.jar"), index.lookup(DEPENDENCY, jar));
+        assertEquals(new HashSet<>(Arrays.asList("a.jar", "b.jar")), index.getDexJars());
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        index.put(DEPENDENCY, jar, DependencyIndex.hash(jar), Collections.singletonList("a.jar"));
+        index.putPartial("org.example/partial/1.0/jar/", jar, DependencyIndex.hash(jar));
+        index.append("org.example/partial/1.0/jar/", "p0.jar");
+        index.save();
+
+        DependencyIndex reopened = DependencyIndex.open(unitDir, unitFile);
+
+        assertEquals(Collections.singletonList("a.jar"), reopened.lookup(DEPENDENCY, jar));
+        assertEquals(Collections.singletonList("p0.jar"), reopened.lookup("org.example/partial/1.0/jar/", jar));
+        assertEquals(Collections.singletonMap("org.example/partial/1.0/jar/", jar), reopened.getPartialJars());
+    }
+
+    @Test
+    public void recognizesTouchedJar() throws IOException {
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        index.put(DEPENDENCY, jar, DependencyIndex.hash(jar), Collections.singletonList("a.jar"));
+
+        assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+
+        assertEquals(Collections.singletonList("a.jar"), index.lookup(DEPENDENCY, jar));
+        assertTrue(index.takeStale().isEmpty());
+    }
+
+    @Test
+    public void forgetsReplacedJar() throws IOException {
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        index.put(DEPENDENCY, jar, DependencyIndex.hash(jar), Collections.singletonList("a.jar"));
+
+        write(jar, "second, longer");
+
+        assertNull(index.lookup(DEPENDENCY, jar));
+        assertEquals(Collections.singleton("a.jar"), index.takeStale());
+        assertTrue(index.takeStale().isEmpty());
+    }
+
+    @Test
+    public void replaceMergesIntoBundle() throws IOException {
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        String hash = DependencyIndex.hash(jar);
+
+        index.put("org.example/one/1.0/jar/", jar, hash, Collections.singletonList("a.jar"));
+        index.put("org.example/two/1.0/jar/", jar, hash, Arrays.asList("b.jar", "c.jar"));
+
+        Set<String> replaced = index.replace(Arrays.asList("a.jar", "b.jar"), "bundle.jar");
+
+        assertEquals(new HashSet<>(Arrays.asList("a.jar", "b.jar")), replaced);
+        assertEquals(Collections.singletonList("bundle.jar"), index.lookup("org.example/one/1.0/jar/", jar));
+        assertEquals(Arrays.asList("bundle.jar", "c.jar"), index.lookup("org.example/two/1.0/jar/", jar));
+        assertFalse(index.isReferenced("a.jar"));
+
+        index.forget("bundle.jar");
+
+        assertTrue(index.getDexJars().isEmpty());
+    }
+
+    @Test
+    public void upgradesVersion1() throws IOException {
+        writeIndex(1, "a.jar");
+
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        assertEquals(Collections.singletonList("a.jar"), index.lookup(DEPENDENCY, jar));
+
+        assertUpgraded(index, Collections.singletonList("a.jar"));
+    }
+
+    @Test
+    public void upgradesVersion2() throws IOException {
+        writeIndex(2, "a.jar", "b.jar");
+
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        assertEquals(Arrays.asList("a.jar", "b.jar"), index.lookup(DEPENDENCY, jar));
+
+        assertUpgraded(index, Arrays.asList("a.jar", "b.jar"));
+    }
+
+    @Test
+    public void ignoresUnsupportedVersion() throws IOException {
+        writeIndex(4, "a.jar");
+
+        DependencyIndex index = DependencyIndex.open(unitDir, unitFile);
+
+        assertNull(index.lookup(DEPENDENCY, jar));
+    }
+
+    // a newer index is written, once anything changes, and reads back the same
+    private void assertUpgraded(DependencyIndex index, List<String> dexJars) throws IOException {
+        index.putPartial("org.example/partial/1.0/jar/", jar, DependencyIndex.hash(jar));
+        index.save();
+
+        DependencyIndex reopened = DependencyIndex.open(unitDir, unitFile);
+
+        assertEquals(dexJars, reopened.lookup(DEPENDENCY, jar));
+        assertEquals(Collections.singletonMap("org.example/partial/1.0/jar/", jar), reopened.getPartialJars());
+    }
+
+    // writes the index in the format of an older version
+    private void writeIndex(int version, String... dexJars) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(unitDir, DependencyIndex.FILE_NAME)))) {
+            out.writeInt(version);
+            out.writeInt(1);
+
+            out.writeUTF(DEPENDENCY);
+
+            if (version == 1) {
+                out.writeUTF(dexJars[0]);
+            } else {
+                out.writeInt(dexJars.length);
+
+                for (String dexJar : dexJars) {
+                    out.writeUTF(dexJar);
+                }
+            }
+
+            out.writeLong(jar.length());
+            out.writeLong(jar.lastModified());
+            out.writeUTF(DependencyIndex.hash(jar));
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDexStoreTest {
+    private static final String KEY = SharedDexStore.keyFor("jar-hash", "options");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedDexStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new SharedDexStore(new File(folder.getRoot(), SharedDexStore.DIR_NAME));
+    }
+
+    @Test
+    public void keepsEntryWhileReferenced() throws IOException {
+        File entry = store.publish(KEY, prepare(KEY, "dex"), "first", false);
+
+        assertEquals(SharedDexStore.entryName(KEY, false), entry.getName());
+        assertEquals(entry, store.acquire(KEY, "second"));
+
+        store.release("first", Collections.singleton(entry.getName()));
+
+        assertTrue(entry.exists());
+
+        store.release("second", Collections.singleton(entry.getName()));
+
+        assertFalse(entry.exists());
+        assertFalse(store.contains(KEY));
+        assertNull(store.acquire(KEY, "third"));
+    }
+
+    @Test
+    public void countsUnitOnce() throws IOException {
+        File entry = store.publish(KEY, prepare(KEY, "dex"), "first", false);
+
+        assertEquals(entry, store.acquire(KEY, "first"));
+
+        store.release("first", Collections.singleton(entry.getName()));
+
+        assertFalse(entry.exists());
+    }
+
+    @Test
+    public void keepsFirstPublishedEntry() throws IOException {
+        File entry = store.publish(KEY, prepare(KEY, "first"), "first", false);
+
+        File prepared = prepare(KEY, "second");
+
+        assertEquals(entry, store.publish(KEY, prepared, "second", true));
+        assertFalse(prepared.exists());
+
+        store.release("first", Collections.singleton(entry.getName()));
+
+        assertTrue(entry.exists());
+    }
+
+    @Test
+    public void publishesRawDex() throws IOException {
+        File entry = store.publish(KEY, prepare(KEY, "dex"), "first", true);
+
+        assertEquals(SharedDexStore.entryName(KEY, true), entry.getName());
+        assertEquals(KEY, SharedDexStore.keyOf(entry.getName()));
+        assertEquals(entry, store.entryFile(KEY));
+
+        store.release("first", Collections.singleton(entry.getName()));
+
+        assertFalse(entry.exists());
+    }
+
+    @Test
+    public void acquiresAllParts() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            String partKey = SharedDexStore.partKey(KEY, i);
+
+            store.publish(partKey, prepare(partKey, "part " + i), "first", false);
+        }
+
+        List<File> parts = store.acquireAll(KEY, "second");
+
+        assertEquals(3, parts.size());
+        assertEquals(SharedDexStore.entryName(KEY, false), parts.get(0).getName());
+        assertEquals(SharedDexStore.entryName(KEY + "-3", false), parts.get(2).getName());
+
+        assertNull(store.acquireAll(SharedDexStore.keyFor("other", "options"), "second"));
+    }
+
+    @Test
+    public void ignoresForeignNames() throws IOException {
+        assertNull(SharedDexStore.keyOf("dependencies.idx"));
+
+        store.release("first", Arrays.asList("dependencies.idx", SharedDexStore.entryName(KEY, false)));
+    }
+
+    private File prepare(String key, String contents) throws IOException {
+        File prepared = store.prepare(key);
+
+        try (FileOutputStream out = new FileOutputStream(prepared)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+
+        return prepared;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UnitStampTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void survivesRewriting() throws IOException {
+        File unitDir = folder.newFolder("unit");
+
+        assertNull(UnitStamp.read(unitDir));
+
+        new UnitStamp(UnitStamp.hash("println 1"), UnitStamp.hash("config"), 0).write(unitDir);
+        new UnitStamp(UnitStamp.hash("println 2"), UnitStamp.hash("config"), 1).write(unitDir);
+
+        UnitStamp stamp = UnitStamp.read(unitDir);
+
+        assertEquals(UnitStamp.hash("println 2"), stamp.getSourceHash());
+        assertEquals(UnitStamp.hash("config"), stamp.getConfigHash());
+        assertEquals(1, stamp.getVersion());
+
+        for (String name : unitDir.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void rejectsUnreadableStamp() throws IOException {
+        File unitDir = folder.newFolder("unit");
+
+        try (FileOutputStream out = new FileOutputStream(new File(unitDir, UnitStamp.FILE_NAME))) {
+            out.write("unit.version=first\n".getBytes("ISO-8859-1"));
+        }
+
+        assertNull(UnitStamp.read(unitDir));
+    }
+
+    @Test
+    public void matchesConfigAndOptionalSource() {
+        UnitStamp stamp = new UnitStamp("source", "config", 0);
+
+        assertTrue(stamp.matches("source", "config"));
+        assertTrue(stamp.matches(null, "config"));
+        assertFalse(stamp.matches("other", "config"));
+        assertFalse(stamp.matches("source", "other"));
+    }
+
+    @Test
+    public void hashesText() {
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", UnitStamp.hash(""));
+        assertEquals(UnitStamp.hash(new byte[] { 'a', 'b' }), UnitStamp.hash("ab"));
+    }
+}
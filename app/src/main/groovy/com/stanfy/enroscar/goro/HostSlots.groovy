@@ -0,0 +1,213 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.app.ActivityManager
+import android.content.Context
+import android.content.Intent
+import android.util.Log
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+
+/**
+ * Host processes of scripts. Each slot is a {@link ScriptBuilder} service in a process of it's own; one of them is
+ * active and receives new tasks, the next one is kept running as standby. When the active process becomes unfit for
+ * more scripts (classes can not be unloaded), it retires: the standby becomes active and the retired process exits
+ * as soon as it's running tasks are done.
+ *
+ * <p>
+ *
+ * The state is shared by all processes of application, so it is kept in a file and guarded by a file lock.
+ */
+@CompileStatic @PackageScope
+final class HostSlots {
+    private static final String TAG = 'HostSlots'
+
+    private static final String FILE_NAME = 'host-slots'
+
+    private static final int VERSION = 1
+
+    // each one runs in a process of it's own, see AndroidManifest.xml
+    private static final List<Class<?>> SERVICES = [ScriptBuilder, ScriptBuilder.Slot1, ScriptBuilder.Slot2] as List<Class<?>>
+
+    private static final Object processLock = new Object()
+
+    private HostSlots() {}
+
+    static int slotOf(Class<?> service) {
+        return SERVICES.indexOf(service)
+    }
+
+    static Intent intentFor(Context context, int slot) {
+        return new Intent(context, SERVICES.get(slot))
+    }
+
+    static int getActive(Context context) {
+        int active = 0
+
+        withState(context) { State state -> active = state.active }
+
+        return active
+    }
+
+    /**
+     * @return the slot, which would take over from specified one, or -1, if every other slot is still occupied by
+     * a retired process
+     */
+    static int findStandby(Context context, int slot) {
+        int standby = -1
+
+        withState(context) { State state -> standby = findStandby(context, state, slot) }
+
+        return standby
+    }
+
+    /**
+     * Makes the standby of specified slot active, unless it is not active itself
+     *
+     * @return the new active slot or -1, if no slot can take over (see {@link #findStandby})
+     */
+    static int retire(Context context, int slot, int pid) {
+        int next = -1
+
+        withState(context) { State state ->
+            if (state.active != slot) return
+
+            next = findStandby(context, state, slot)
+
+            if (next == -1) return
+
+            state.active = next
+            state.retiredPids[slot] = pid
+
+            state.dirty = true
+        }
+
+        return next
+    }
+
+    private static int findStandby(Context context, State state, int slot) {
+        for (int i = 1; i < SERVICES.size(); i++) {
+            def candidate = (slot + i) % SERVICES.size()
+
+            def retiredPid = state.retiredPids[candidate]
+
+            if (!retiredPid || !isRunning(context, retiredPid)) return candidate
+        }
+
+        return -1
+    }
+
+    private static boolean isRunning(Context context, int pid) {
+        def am = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+
+        def processes = am.runningAppProcesses
+
+        return processes != null && processes.any { ActivityManager.RunningAppProcessInfo it -> it.pid == pid }
+    }
+
+    private static void withState(Context context, Closure<?> action) {
+        def file = new File(context.filesDir, FILE_NAME)
+
+        synchronized (processLock) {
+            new RandomAccessFile(new File(context.filesDir, "${FILE_NAME}.lock"), 'rw').withCloseable { RandomAccessFile raf ->
+                FileChannel channel = raf.channel
+
+                FileLock fileLock = channel.lock()
+                try {
+                    def state = State.read(file)
+
+                    action.call(state)
+
+                    if (state.dirty) state.write(file)
+                } finally {
+                    fileLock.release()
+                }
+            }
+        }
+    }
+
+    private static final class State {
+        int active
+
+        final int[] retiredPids = new int[SERVICES.size()]
+
+        boolean dirty
+
+        static State read(File file) {
+            def state = new State()
+
+            if (!file.exists()) return state
+
+            try {
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file))).withCloseable {
+                    if (it.readInt() != VERSION) return
+
+                    def active = it.readInt()
+                    def count = it.readInt()
+
+                    // the number of slots may change between versions of application
+                    state.active = active < SERVICES.size() ? active : 0
+
+                    for (int i = 0; i < count; i++) {
+                        def pid = it.readInt()
+
+                        if (i < state.retiredPids.length) state.retiredPids[i] = pid
+                    }
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "Failed to read $file: $ioe")
+            }
+
+            return state
+        }
+
+        void write(File file) throws IOException {
+            def backupFile = "${file.path}.bak" as File
+
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(backupFile))).withCloseable {
+                it.writeInt(VERSION)
+                it.writeInt(active)
+                it.writeInt(retiredPids.length)
+
+                for (int pid : retiredPids) {
+                    it.writeInt(pid)
+                }
+            }
+
+            if (!backupFile.renameTo(file)) throw new IOException("Failed to replace $file")
+
+            dirty = false
+        }
+    }
+}
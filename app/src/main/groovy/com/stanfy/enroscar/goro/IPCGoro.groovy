@@ -1,15 +1,19 @@
 package com.stanfy.enroscar.goro
 
 import android.os.Bundle
+import android.os.Handler
 import android.os.IBinder
 import android.os.IInterface
 import android.os.Looper
+import android.os.Message
+import android.os.Messenger
 import android.os.Parcelable
 import android.os.Process
 import android.os.RemoteException
 import groovy.transform.CompileStatic
 import net.sf.fakenames.app.IGoro
 import net.sf.fakenames.app.ParcelableTask
+import net.sf.fakenames.app.RunMetrics
 
 import java.util.concurrent.Callable
 
@@ -23,6 +27,11 @@ final class IPCGoro implements IInterface {
 
     private int listenerCount
 
+    // version of the last event, received by each batch listener, -1 if none yet
+    private final Map<TaskBatch.Listener, Long> batchListeners = new LinkedHashMap<>()
+
+    private Messenger batchMessenger
+
     private IPCGoro(IGoro delegate) {
         this.delegate = delegate
 
@@ -51,12 +60,110 @@ final class IPCGoro implements IInterface {
             delegate.removeTaskListener(handler.messenger)
     }
 
+    /**
+     * @return null, if the task is not known to the service, otherwise see {@link ScriptBuilder#TASK_RUNNING} etc.
+     */
+    Bundle getTaskStatus(int taskId) {
+        return delegate.getTaskStatus(taskId)
+    }
+
+    /**
+     * Reads output of the last run of the task, see {@link ScriptOutput}. To tail it, pass the position of the returned
+     * chunk plus it's length to the next call, and start from 0, when {@link ScriptBuilder#OUTPUT_RUN} changes; bytes,
+     * overwritten before being read, are counted in {@link ScriptBuilder#OUTPUT_DROPPED}
+     *
+     * @return null, if the task has not been run lately, otherwise see {@link ScriptBuilder#OUTPUT_BYTES} etc.
+     */
+    Bundle readOutput(int taskId, long position, int maxBytes) {
+        return delegate.readOutput(taskId, position, maxBytes)
+    }
+
+    /**
+     * Adds the listener of {@link TaskBatch batched} events, which are cheaper than individual callbacks of
+     * {@link GoroListener}, when many tasks are run. The first batch is always reported as missing events
+     */
+    void addBatchListener(TaskBatch.Listener listener) {
+        assert Looper.myLooper() == Looper.mainLooper
+
+        batchListeners.put(listener, -1L)
+
+        if (batchMessenger == null) {
+            batchMessenger = new Messenger(new Handler(Looper.mainLooper, { Message msg ->
+                onBatch(msg)
+
+                return true
+            } as Handler.Callback))
+
+            delegate.addBatchListener(batchMessenger)
+        }
+    }
+
+    void removeBatchListener(TaskBatch.Listener listener) {
+        assert Looper.myLooper() == Looper.mainLooper
+
+        batchListeners.remove(listener)
+
+        if (!batchListeners && batchMessenger != null) {
+            try {
+                delegate.removeBatchListener(batchMessenger)
+            }
+            catch (RemoteException ignore) {}
+
+            batchMessenger = null
+        }
+    }
+
+    private void onBatch(Message msg) {
+        if (msg.what != TaskEvents.MSG_BATCH) return
+
+        def batch = TaskBatch.fromBundle(msg.data)
+
+        for (TaskBatch.Listener listener : new ArrayList<TaskBatch.Listener>(batchListeners.keySet())) {
+            Long lastVersion = batchListeners.get(listener)
+
+            // removed by one of previous listeners
+            if (lastVersion == null) continue
+
+            batchListeners.put(listener, batch.version)
+
+            listener.onTaskBatch(batch, lastVersion == -1 || batch.since != lastVersion + 1)
+        }
+    }
+
     int[] getRunningTasks() {
         assert Looper.myLooper() == Looper.mainLooper
 
         return delegate.runningTasks
     }
 
+    /**
+     * @return recent runs of scripts in the service process, see {@link RunMetrics}
+     */
+    List<Bundle> getRunMetrics() {
+        return delegate.runMetrics
+    }
+
+    /**
+     * @return queues of scripts in the service process, see {@link ScriptBuilder#QUEUE_DEPTH} etc.
+     */
+    List<Bundle> getQueueMetrics() {
+        return delegate.queueMetrics
+    }
+
+    /**
+     * @return times of warm-up steps of the service process or null, if it isn't warmed up yet
+     */
+    Bundle getWarmUpMetrics() {
+        return delegate.warmUpMetrics
+    }
+
+    /**
+     * @return memory, taken by scripts in the service process, see {@link ScriptBuilder#MEMORY_UNITS} etc.
+     */
+    Bundle getMemoryUsage() {
+        return delegate.memoryUsage
+    }
+
     void removeTasksInQueue(String queueName) {
         try {
             delegate.removeTasksInQueue(queueName)
@@ -64,6 +171,16 @@ final class IPCGoro implements IInterface {
         catch (RemoteException ignore) {}
     }
 
+    /**
+     * Interrupts the task, see {@link ScriptWatchdog} for what happens, if it does not stop
+     */
+    void cancelTask(int taskId) {
+        try {
+            delegate.cancelTask(taskId)
+        }
+        catch (RemoteException ignore) {}
+    }
+
     void schedule(ParcelableTask task) {
         def b = new Bundle()
 
@@ -72,6 +189,17 @@ final class IPCGoro implements IInterface {
         delegate.schedule(b)
     }
 
+    /**
+     * Schedules all tasks in a single transaction. Scripts of the tasks start running, when all of them are compiled
+     */
+    void scheduleBatch(List<ParcelableTask> tasks) {
+        def b = new Bundle()
+
+        b.putParcelableArrayList(ScriptBuilder.EXTRA_PARCELABLE_TASKS, new ArrayList<ParcelableTask>(tasks))
+
+        delegate.scheduleBatch(b)
+    }
+
     public static IPCGoro from(IBinder binder) {
         new IPCGoro(IGoro.Stub.asInterface(binder))
     }
@@ -0,0 +1,188 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.os.SystemClock
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Tasks of the host by their ids, with the state of each one and the time of entering it. Every change publishes a
+ * new immutable snapshot of sorted primitive arrays, so that readers neither lock, nor allocate, nor box ids.
+ */
+@CompileStatic @PackageScope
+final class RunningTasks {
+    static final int NONE = 0
+    static final int QUEUED = 1
+    static final int RUNNING = 2
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY)
+
+    void queued(int taskId) {
+        update(taskId, QUEUED, true)
+    }
+
+    /**
+     * Does nothing, if the task is not known (e.g. has been removed already)
+     */
+    void started(int taskId) {
+        update(taskId, RUNNING, false)
+    }
+
+    /**
+     * @return true, if no tasks are left
+     */
+    boolean remove(int taskId) {
+        while (true) {
+            def snapshot = current.get()
+
+            def index = Arrays.binarySearch(snapshot.ids, taskId)
+
+            if (index < 0) return snapshot.ids.length == 0
+
+            def updated = snapshot.without(index)
+
+            if (current.compareAndSet(snapshot, updated)) return updated.ids.length == 0
+        }
+    }
+
+    /**
+     * @return ids of all tasks in ascending order; the array is shared and must not be modified
+     */
+    int[] getIds() {
+        return current.get().ids
+    }
+
+    int size() {
+        return current.get().ids.length
+    }
+
+    int stateOf(int taskId) {
+        def snapshot = current.get()
+
+        def index = Arrays.binarySearch(snapshot.ids, taskId)
+
+        return index < 0 ? NONE : snapshot.states[index]
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtime} of the moment, when the task has entered it's current state, or -1
+     */
+    long since(int taskId) {
+        def snapshot = current.get()
+
+        def index = Arrays.binarySearch(snapshot.ids, taskId)
+
+        return index < 0 ? -1 : snapshot.since[index]
+    }
+
+    private void update(int taskId, int state, boolean add) {
+        def now = SystemClock.elapsedRealtime()
+
+        while (true) {
+            def snapshot = current.get()
+
+            if (!add && Arrays.binarySearch(snapshot.ids, taskId) < 0) return
+
+            if (current.compareAndSet(snapshot, snapshot.with(taskId, (byte) state, now))) return
+        }
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new int[0], new byte[0], new long[0])
+
+        final int[] ids
+        final byte[] states
+        final long[] since
+
+        Snapshot(int[] ids, byte[] states, long[] since) {
+            this.ids = ids
+            this.states = states
+            this.since = since
+        }
+
+        Snapshot with(int taskId, byte state, long now) {
+            def index = Arrays.binarySearch(ids, taskId)
+
+            if (index >= 0) {
+                def newStates = Arrays.copyOf(states, states.length)
+                def newSince = Arrays.copyOf(since, since.length)
+
+                newStates[index] = state
+                newSince[index] = now
+
+                return new Snapshot(ids, newStates, newSince)
+            }
+
+            def at = -index - 1
+            def length = ids.length
+
+            def newIds = new int[length + 1]
+            def newStates = new byte[length + 1]
+            def newSince = new long[length + 1]
+
+            System.arraycopy(ids, 0, newIds, 0, at)
+            System.arraycopy(states, 0, newStates, 0, at)
+            System.arraycopy(since, 0, newSince, 0, at)
+
+            newIds[at] = taskId
+            newStates[at] = state
+            newSince[at] = now
+
+            System.arraycopy(ids, at, newIds, at + 1, length - at)
+            System.arraycopy(states, at, newStates, at + 1, length - at)
+            System.arraycopy(since, at, newSince, at + 1, length - at)
+
+            return new Snapshot(newIds, newStates, newSince)
+        }
+
+        Snapshot without(int index) {
+            def length = ids.length - 1
+
+            if (length == 0) return EMPTY
+
+            def newIds = new int[length]
+            def newStates = new byte[length]
+            def newSince = new long[length]
+
+            System.arraycopy(ids, 0, newIds, 0, index)
+            System.arraycopy(states, 0, newStates, 0, index)
+            System.arraycopy(since, 0, newSince, 0, index)
+
+            System.arraycopy(ids, index + 1, newIds, index, length - index)
+            System.arraycopy(states, index + 1, newStates, index, length - index)
+            System.arraycopy(since, index + 1, newSince, index, length - index)
+
+            return new Snapshot(newIds, newStates, newSince)
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.util.Log
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Batches of tasks, scheduled together (see IGoro.scheduleBatch). Each task of a batch compiles (or loads) it's script
+ * and then waits for the rest of the batch, so that scripts of the batch start running, when all of them are ready.
+ * A task, which fails or is cancelled before that (even before it has started), must {@link #abandon} the batch, so
+ * that others do not wait for it.
+ */
+@CompileStatic
+final class ScriptBatches {
+    private static final String TAG = 'ScriptBatches'
+
+    /**
+     * Time in milliseconds, after which the task stops waiting for the rest of batch and runs anyway (e.g. some task
+     * of batch is stuck in another queue)
+     */
+    static volatile long timeout = 30000
+
+    private static final int CLOSED_RETAINED = 256
+
+    private static final ConcurrentHashMap<String, CountDownLatch> batches = new ConcurrentHashMap<>()
+
+    // batches, which have been completed or timed out lately; tasks, arriving late, don't wait for those
+    private static final Map<String, Boolean> closed = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > CLOSED_RETAINED
+        }
+    }
+
+    private ScriptBatches() {}
+
+    static void arrive(String batch, int size) throws InterruptedException {
+        def latch = countDown(batch, size)
+
+        if (latch == null) return
+
+        if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+            Log.w TAG, "Batch $batch is not ready in $timeout ms, ${latch.count} tasks missing"
+
+            close(batch, latch)
+        }
+    }
+
+    static void abandon(String batch, int size) {
+        countDown(batch, size)
+    }
+
+    /**
+     * @return the latch to wait on, or null if the batch is already closed
+     */
+    private static CountDownLatch countDown(String batch, int size) {
+        def latch = batches.get(batch)
+
+        if (latch == null) {
+            if (isClosed(batch)) return null
+
+            latch = new CountDownLatch(size)
+
+            latch = batches.putIfAbsent(batch, latch) ?: latch
+        }
+
+        latch.countDown()
+
+        if (latch.count == 0) close(batch, latch)
+
+        return latch
+    }
+
+    private static boolean isClosed(String batch) {
+        synchronized (closed) {
+            return closed.containsKey(batch)
+        }
+    }
+
+    private static void close(String batch, CountDownLatch latch) {
+        // closed before being removed, so that nobody starts the batch over in between
+        synchronized (closed) {
+            closed.put(batch, Boolean.TRUE)
+        }
+
+        batches.remove(batch, latch)
+    }
+}
@@ -31,12 +31,14 @@ package com.stanfy.enroscar.goro
 
 import android.app.Notification
 import android.app.PendingIntent
-import android.content.ContentValues
+import android.content.ContentProviderOperation
+import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.content.ServiceConnection
 import android.net.Uri
 import android.os.Bundle
+import android.os.Handler
 import android.os.IBinder
 import android.os.IInterface
 import android.os.Looper
@@ -48,22 +50,23 @@ import android.os.RemoteException
 import android.support.v4.app.NotificationCompat
 import android.util.Log
 import android.widget.Toast
-import com.android.dx.util.IntSet
-import com.android.dx.util.ListIntSet
 import com.stanfy.enroscar.goro.GoroService.GoroBinder
 import groovy.grape.NastyGrapes
 import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
 import groovy.transform.TupleConstructor
 import internal.DexGroovyClassloader
+import internal.MemoryAccounting
 import net.sf.fakenames.app.IGoro
 import net.sf.fakenames.app.PackageCustomizer
 import net.sf.fakenames.app.ParcelableTask
 import net.sf.fakenames.app.R
+import net.sf.fakenames.app.RunMetrics
 import net.sf.fakenames.app.ScriptPicker
 import net.sf.fakenames.db.ScriptContract
 import net.sf.fakenames.db.ScriptProvider
+import org.codehaus.groovy.control.MultipleCompilationErrorsException
 import org.codehaus.groovy.runtime.ArrayUtil
-import org.codehaus.groovy.runtime.metaclass.ConcurrentReaderHashMap
 import org.codehaus.groovy.util.ArrayIterator
 
 import java.lang.Thread.UncaughtExceptionHandler
@@ -71,8 +74,9 @@ import java.lang.ref.WeakReference
 import java.text.DecimalFormat
 import java.util.concurrent.Callable
 import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.RejectedExecutionHandler
-import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadFactory
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
@@ -80,8 +84,43 @@ import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 
 @CompileStatic
-final class ScriptBuilder extends GoroService {
+class ScriptBuilder extends GoroService {
     public static final String EXTRA_PARCELABLE_TASK = 'net.sf.fakenames.app.TASK'
+    public static final String EXTRA_PARCELABLE_TASKS = 'net.sf.fakenames.app.TASKS'
+
+    // keys of memory usage, see IGoro.getMemoryUsage and MemoryAccounting; units have their own figures
+    public static final String MEMORY_USED_HEAP = 'usedHeap'
+    public static final String MEMORY_MAX_HEAP = 'maxHeap'
+    public static final String MEMORY_RETAINED_HEAP = 'retainedHeap'
+    public static final String MEMORY_MAPPED_DEX = 'mappedDex'
+    public static final String MEMORY_CLASSES = 'classes'
+    public static final String MEMORY_EXCEEDED = 'exceeded'
+    public static final String MEMORY_UNITS = 'units'
+    public static final String MEMORY_UNIT = 'unit'
+    public static final String MEMORY_DEX_FILES = 'dexFiles'
+
+    // keys of task status, see IGoro.getTaskStatus; the time is SystemClock.elapsedRealtime of the host
+    public static final String TASK_RUNNING = 'running'
+    public static final String TASK_SINCE = 'since'
+
+    // keys of task output, see IGoro.readOutput and ScriptOutput; positions count bytes, written by the task
+    public static final String OUTPUT_RUN = 'run'
+    public static final String OUTPUT_BYTES = 'bytes'
+    public static final String OUTPUT_POSITION = 'position'
+    public static final String OUTPUT_WRITTEN = 'written'
+    public static final String OUTPUT_DROPPED = 'dropped'
+    public static final String OUTPUT_OVERWRITTEN = 'overwritten'
+    public static final String OUTPUT_FINISHED = 'finished'
+
+    // keys of queue metrics, see IGoro.getQueueMetrics and ScriptScheduler; times are in microseconds
+    public static final String QUEUE_NAME = 'name'
+    public static final String QUEUE_LIMIT = 'limit'
+    public static final String QUEUE_PRIORITY = 'priority'
+    public static final String QUEUE_RUNNING = 'running'
+    public static final String QUEUE_DEPTH = 'depth'
+    public static final String QUEUE_ADMITTED = 'admitted'
+    public static final String QUEUE_WAIT = 'wait'
+    public static final String QUEUE_MAX_WAIT = 'maxWait'
 
     static {
         System.setProperty('groovy.grape.report.downloads', 'true')
@@ -91,7 +130,18 @@ final class ScriptBuilder extends GoroService {
 
     private static final String EXTRA_KILL = 'net.sf.fakenames.app.KILL'
 
-    private static final ScriptRunner runner = new ScriptRunner()
+    private static final DelegatingThreadGroup scriptThreads =
+            new DelegatingThreadGroup(Looper.mainLooper.thread.threadGroup)
+
+    // runs the tasks themselves; ScriptScheduler limits, how many of them may run at once, so the pool does not
+    private static final ScriptRunner runner = new ScriptRunner('Groovy task thread', 0)
+
+    // runs, what scripts submit through the executor binding; bounded, because a script may submit any number of those
+    private static final ScriptRunner scriptRunner =
+            new ScriptRunner('Groovy pool thread', 2 * Runtime.runtime.availableProcessors())
+
+    // tasks of this process; tasks become running, when they get their turn in ScriptScheduler
+    @PackageScope static final RunningTasks tasks = new RunningTasks()
 
     static {
         setDelegateExecutor(runner)
@@ -102,11 +152,24 @@ final class ScriptBuilder extends GoroService {
 
     private DelegateBinder binder
 
+    // see HostSlots
+    @PackageScope final int slot = HostSlots.slotOf(getClass())
+
+    private ServiceConnection standby
+
+    @PackageScope volatile boolean retiring
+
     @Override
     void onCreate() {
         super.onCreate()
 
         NastyGrapes.init(this)
+
+        ScriptWatchdog.host = this
+
+        ScriptOutput.install()
+
+        WarmUp.start(this, slot)
     }
 
     @Override
@@ -119,6 +182,8 @@ final class ScriptBuilder extends GoroService {
 
         super.onStartCommand(intent, flags, startId)
 
+        keepStandby()
+
         checkNf()
 
         return START_NOT_STICKY
@@ -139,14 +204,16 @@ final class ScriptBuilder extends GoroService {
     IBinder onBind(Intent intent) {
         def goroBinder = super.onBind(intent) as GoroBinder
 
-        binder = new DelegateBinder(goroBinder, applicationContext)
+        binder = new DelegateBinder(goroBinder, this)
 
         def exceptionHandler = ExceptionHandler.init(this, binder)
 
-        runner.parentGroup.delegate = exceptionHandler
+        scriptThreads.delegate = exceptionHandler
 
         bindingsHad++
 
+        keepStandby()
+
         checkNf()
 
         return binder
@@ -161,6 +228,68 @@ final class ScriptBuilder extends GoroService {
         checkNf()
     }
 
+    /**
+     * Keeps the process of the next slot running, while this one is active, so that it is ready to take over
+     */
+    private void keepStandby() {
+        if (standby || retiring || HostSlots.getActive(this) != slot) return
+
+        def next = HostSlots.findStandby(this, slot)
+
+        if (next == -1) return
+
+        standby = new ServiceConnection() {
+            @Override
+            void onServiceConnected(ComponentName name, IBinder service) {
+                Log.i TAG, "Host slot $next is ready"
+            }
+
+            @Override
+            void onServiceDisconnected(ComponentName name) {
+            }
+        }
+
+        bindService(HostSlots.intentFor(this, next), standby, BIND_AUTO_CREATE)
+    }
+
+    /**
+     * Hands the active role over to the standby process
+     *
+     * @return the slot, which now receives tasks, or -1 if there is none and this process has to be restarted
+     */
+    @PackageScope int retire() {
+        def next = HostSlots.retire(this, slot, Process.myPid())
+
+        if (next != -1) {
+            Log.i TAG, "Retiring host slot $slot, slot $next takes over"
+
+            retiring = true
+        }
+
+        return next
+    }
+
+    /**
+     * Called, when the task is handed to the new active slot, or the last task of retired slot is done
+     */
+    @PackageScope void exitIfRetired() {
+        if (!retiring) return
+
+        new Handler(Looper.mainLooper).post {
+            if (standby) {
+                unbindService(standby)
+
+                standby = null
+            }
+
+            if (!tasks.size()) {
+                Log.i TAG, "Host slot $slot is retired, exiting"
+
+                Process.killProcess(Process.myPid())
+            }
+        }
+    }
+
     @Override
     protected void stop() {
         checkNf()
@@ -190,7 +319,8 @@ final class ScriptBuilder extends GoroService {
 
     @Override
     protected boolean isActive() {
-        binder.runningTasks.length
+        // a standby slot may get a task, handed over by retiring one, before anyone binds it
+        tasks.size() != 0
     }
 
     Notification createForegroundNf() {
@@ -199,14 +329,23 @@ final class ScriptBuilder extends GoroService {
         new NotificationCompat.Builder(this)
                 .setSmallIcon(R.drawable.ic_nf_foreground)
                 .setContentTitle('Groovy Shell is running')
-                .setContentText("Scripts in queue: ${binder.tasks.size()}...")
+                .setContentText("Scripts in queue: ${tasks.size()}...")
                 .setContentIntent(intent)
                 .setProgress(100, 0, true)
                 .build()
     }
 
+    /**
+     * Binds the active slot (see {@link HostSlots})
+     */
     public static bindIt(Context context, ServiceConnection connection) {
-        context.bindService(getIntent(context), connection, BIND_AUTO_CREATE)
+        context.bindService(HostSlots.intentFor(context, HostSlots.getActive(context)), connection, BIND_AUTO_CREATE)
+    }
+
+    static final class Slot1 extends ScriptBuilder {
+    }
+
+    static final class Slot2 extends ScriptBuilder {
     }
 
     private static class DelegatingThreadGroup extends ThreadGroup {
@@ -245,15 +384,20 @@ final class ScriptBuilder extends GoroService {
     static class DelegateBinder extends IGoro.Stub implements GoroBinder, GoroListener {
         private final GoroBinder delegate
 
-        private final Set<Integer> tasks = Collections.newSetFromMap(new ConcurrentReaderHashMap<>())
-
         private final RemoteCallbackList<BogusIInterface> rcl = new RemoteCallbackList<>()
 
+        private final TaskEvents events = new TaskEvents()
+
+        private final AtomicInteger batchCount = new AtomicInteger()
+
         private final Context context
 
-        DelegateBinder(GoroBinder delegate, Context context) {
+        private final ScriptBuilder host
+
+        DelegateBinder(GoroBinder delegate, ScriptBuilder host) {
             this.delegate = delegate
-            this.context = context
+            this.host = host
+            this.context = host.applicationContext
 
             delegate.goro().addTaskListener(this)
         }
@@ -270,63 +414,208 @@ final class ScriptBuilder extends GoroService {
 
         @Override
         int[] getRunningTasks() {
-            synchronized (tasks) {
-                return tasks as int[]
-            }
+            return tasks.ids
+        }
+
+        @Override
+        Bundle getTaskStatus(int taskId) {
+            def state = tasks.stateOf(taskId)
+
+            if (state == RunningTasks.NONE) return null
+
+            def result = new Bundle()
+
+            result.putBoolean(TASK_RUNNING, state == RunningTasks.RUNNING)
+            result.putLong(TASK_SINCE, tasks.since(taskId))
+
+            return result
         }
 
         @Override
         void schedule(Bundle taskBundle) {
             taskBundle.classLoader = ParcelableTask.classLoader
 
-            def task = taskBundle.<ParcelableTask>getParcelable(EXTRA_PARCELABLE_TASK)
+            scheduleAll(Collections.singletonList(taskBundle.<ParcelableTask>getParcelable(EXTRA_PARCELABLE_TASK)), false)
+        }
+
+        @Override
+        void scheduleBatch(Bundle batchBundle) {
+            batchBundle.classLoader = ParcelableTask.classLoader
+
+            def batch = batchBundle.<ParcelableTask>getParcelableArrayList(EXTRA_PARCELABLE_TASKS)
 
+            if (batch) scheduleAll(batch, batch.size() > 1)
+        }
+
+        /**
+         * @param together whether the tasks should wait for each other before running their scripts, see ScriptBatches
+         */
+        private void scheduleAll(List<ParcelableTask> batch, boolean together) {
             def extras = new Bundle()
 
-            def scriptCodeFile = DexGroovyClassloader.makeUnitFile(context, task.targetScript)
+            boolean kill = false
+
+            def targetSlot = HostSlots.getActive(context)
 
-            def usedMemory = getFreeMemory()
-            if (DexGroovyClassloader.classloadersCached && usedMemory < 0.5 && (usedMemory = getFreeMemory(true)) < 0.5) {
-                Log.i TAG, "Used up $usedMemory% of memory with ${Runtime.runtime.freeMemory()} remaining"
+            def exceeded = targetSlot == host.slot ? MemoryAccounting.sample().exceeded(MemoryAccounting.budget) : null
+            if (exceeded) {
+                Log.i TAG, "Memory budget exceeded: $exceeded"
 
-                extras.putBoolean(EXTRA_KILL, true)
-            } else if (!task.runExisting && DexGroovyClassloader.cachedClassLoader(scriptCodeFile)) {
-                Log.i TAG, "Requested to recompile $scriptCodeFile, which is already loaded"
+                def next = host.retire()
 
-                extras.putBoolean(EXTRA_KILL, true)
+                if (next == -1) {
+                    kill = true
+                } else {
+                    targetSlot = next
+                }
             }
 
-            if (!task.scriptUri) {
-                def cv = new ContentValues(2)
-                cv.put(ScriptContract.Scripts.HUMAN_NAME, task.targetScript)
-                cv.put(ScriptContract.Scripts.SCRIPT_ORIGIN_URI, task.sourceUri as String)
-                def scriptUri = context.contentResolver.insert(ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME), cv)
+            def scriptsUri = ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME)
+
+            // records of new scripts are inserted in one go
+            def inserts = new ArrayList<ContentProviderOperation>()
 
-                task = new ParcelableTask(task.targetScript, task.sourceUri, scriptUri, task.runExisting)
+            for (ParcelableTask task : batch) {
+                if (!task.scriptUri) {
+                    inserts << ContentProviderOperation.newInsert(scriptsUri)
+                            .withValue(ScriptContract.Scripts.HUMAN_NAME, task.targetScript)
+                            .withValue(ScriptContract.Scripts.SCRIPT_ORIGIN_URI, task.sourceUri as String)
+                            .build()
+                }
             }
 
+            def inserted = inserts ? context.contentResolver.applyBatch(scriptsUri.authority, inserts) : null
+
+            def batchId = together ? "${Process.myPid()}-${batchCount.incrementAndGet()}" as String : null
+
             extras.putBoolean(EXTRA_IGNORE_ERROR, true)
 
-            def intent = taskIntent(context, task).putExtras(extras)
+            int insertedIndex = 0
+
+            for (ParcelableTask task : batch) {
+                def scriptUri = task.scriptUri ?: inserted[insertedIndex++].uri
 
-            context.startService(intent)
+                def scheduled = new ParcelableTask(task.targetScript, task.sourceUri, scriptUri, task.runExisting,
+                        task.queue, batchId, together ? batch.size() : 0)
+
+                // Goro runs tasks of a queue one by one, so queues of scripts are left to ScriptScheduler
+                def intent = taskIntent(context, scheduled, null as String)
+                        .setComponent(HostSlots.intentFor(context, targetSlot).component)
+                        .putExtras(extras)
+
+                // the first intent restarts the process, the rest are delivered to the new one
+                if (kill) {
+                    intent.putExtra(EXTRA_KILL, true)
+
+                    kill = false
+                }
+
+                context.startService(intent)
+            }
+
+            if (targetSlot != host.slot) host.exitIfRetired()
         }
 
-        private static double getFreeMemory(boolean recheck = false) {
-            def vm = Runtime.runtime
+        @Override
+        Bundle getMemoryUsage() {
+            def usage = MemoryAccounting.sample()
+
+            def result = new Bundle()
 
-            if (recheck) {
-                vm.gc()
-                Thread.sleep(100)
-                vm.runFinalization()
-                Thread.sleep(50)
-                vm.gc()
+            result.putLong(MEMORY_USED_HEAP, usage.usedHeap)
+            result.putLong(MEMORY_MAX_HEAP, usage.maxHeap)
+            result.putLong(MEMORY_RETAINED_HEAP, usage.retainedHeap)
+            result.putLong(MEMORY_MAPPED_DEX, usage.mappedDexBytes)
+            result.putLong(MEMORY_CLASSES, usage.classes)
+            result.putString(MEMORY_EXCEEDED, usage.exceeded(MemoryAccounting.budget))
+
+            def units = new ArrayList<Bundle>(usage.units.size())
+
+            for (MemoryAccounting.UnitUsage unit : usage.units) {
+                def unitBundle = new Bundle()
+
+                unitBundle.putString(MEMORY_UNIT, unit.unit)
+                unitBundle.putLong(MEMORY_DEX_FILES, unit.dexFiles)
+                unitBundle.putLong(MEMORY_MAPPED_DEX, unit.mappedDexBytes)
+                unitBundle.putLong(MEMORY_CLASSES, unit.classes)
+                unitBundle.putLong(MEMORY_RETAINED_HEAP, unit.retainedHeap)
+
+                units << unitBundle
+            }
+
+            result.putParcelableArrayList(MEMORY_UNITS, units)
+
+            return result
+        }
+
+        @Override
+        void cancelTask(int taskId) {
+            if (!ScriptWatchdog.cancel(taskId)) {
+                Log.i TAG, "Task $taskId is not running"
             }
+        }
+
+        @Override
+        Bundle readOutput(int taskId, long position, int maxBytes) {
+            def ring = ScriptOutput.get(taskId)
+
+            if (ring == null) return null
+
+            def chunk = new byte[Math.max(0, Math.min(maxBytes, ring.capacity))]
+
+            long start
+            long written
+            int count
+
+            synchronized (ring) {
+                start = ring.startOf(position)
+                count = ring.read(start, chunk)
+                written = ring.written
+            }
+
+            def result = new Bundle()
 
-            def used = vm.totalMemory()
-            def max = vm.maxMemory()
+            result.putLong(OUTPUT_RUN, ring.run)
+            result.putByteArray(OUTPUT_BYTES, count == chunk.length ? chunk : Arrays.copyOf(chunk, count))
+            result.putLong(OUTPUT_POSITION, start)
+            result.putLong(OUTPUT_WRITTEN, written)
+            result.putLong(OUTPUT_DROPPED, Math.max(0L, start - position))
+            result.putLong(OUTPUT_OVERWRITTEN, ring.overwritten)
+            result.putBoolean(OUTPUT_FINISHED, ring.finished)
 
-            (max - used) / max
+            return result
+        }
+
+        @Override
+        List<Bundle> getQueueMetrics() {
+            def result = new ArrayList<Bundle>()
+
+            for (ScriptScheduler.Lane lane : ScriptScheduler.lanes) {
+                def laneBundle = new Bundle()
+
+                laneBundle.putString(QUEUE_NAME, lane.name)
+                laneBundle.putInt(QUEUE_LIMIT, lane.limit)
+                laneBundle.putInt(QUEUE_PRIORITY, lane.priority)
+                laneBundle.putInt(QUEUE_RUNNING, lane.running)
+                laneBundle.putInt(QUEUE_DEPTH, lane.depth)
+                laneBundle.putLong(QUEUE_ADMITTED, lane.admitted)
+                laneBundle.putLong(QUEUE_WAIT, TimeUnit.NANOSECONDS.toMicros(lane.waitNanos))
+                laneBundle.putLong(QUEUE_MAX_WAIT, TimeUnit.NANOSECONDS.toMicros(lane.maxWaitNanos))
+
+                result << laneBundle
+            }
+
+            return result
+        }
+
+        @Override
+        List<Bundle> getRunMetrics() {
+            return RunMetrics.recent()
+        }
+
+        @Override
+        Bundle getWarmUpMetrics() {
+            return RunMetrics.warmUp
         }
 
         @Override
@@ -339,6 +628,16 @@ final class ScriptBuilder extends GoroService {
             rcl.unregister(new BogusIInterface(messenger.binder))
         }
 
+        @Override
+        void addBatchListener(Messenger messenger) {
+            events.addListener(messenger)
+        }
+
+        @Override
+        void removeBatchListener(Messenger messenger) {
+            events.removeListener(messenger)
+        }
+
         @Override
         void removeTasksInQueue(String queueName) {
             goro().removeTasksInQueue(queueName)
@@ -347,15 +646,33 @@ final class ScriptBuilder extends GoroService {
                 NastyGrapes.interrupt()
             }
 
-            runner.reset()
+            ScriptWatchdog.cancelQueue(queueName)
+        }
+
+        private static int taskId(Callable<?> task) {
+            return ((ParcelableTask) task).taskId
+        }
+
+        private void removeTask(ParcelableTask task) {
+            // a task, cancelled in Goro queue, never gets to run, and others of it's batch must not wait for it
+            task.abandonBatch()
+
+            if (tasks.remove(task.taskId)) {
+                if (host.retiring) {
+                    host.exitIfRetired()
+                } else {
+                    // a good moment to tidy up Dex files of scripts
+                    DexGroovyClassloader.compactWhenIdle()
+                }
+            }
         }
 
         @Override
         void onTaskSchedule(Callable<?> task, String queue) {
             if (task instanceof Parcelable) {
-                synchronized (tasks) {
-                    tasks.add(Integer.parseInt(((ParcelableTask) task).scriptUri.lastPathSegment))
-                }
+                tasks.queued(taskId(task))
+
+                events.add(taskId(task), TaskBatch.SCHEDULED, null)
 
                 rcl.beginBroadcast()
 
@@ -371,6 +688,8 @@ final class ScriptBuilder extends GoroService {
         @Override
         void onTaskStart(Callable<?> task) {
             if (task instanceof Parcelable) {
+                events.add(taskId(task), TaskBatch.STARTED, null)
+
                 rcl.beginBroadcast()
 
                 def callbacksCount = rcl.registeredCallbackCount
@@ -385,9 +704,9 @@ final class ScriptBuilder extends GoroService {
         @Override
         void onTaskFinish(Callable<?> task, Object result) {
             if (task instanceof Parcelable) {
-                synchronized (tasks) {
-                    tasks.remove(Integer.parseInt(((ParcelableTask) task).scriptUri.lastPathSegment))
-                }
+                removeTask(task as ParcelableTask)
+
+                events.add(taskId(task), TaskBatch.FINISHED, null)
 
                 rcl.beginBroadcast()
 
@@ -403,9 +722,9 @@ final class ScriptBuilder extends GoroService {
         @Override
         void onTaskCancel(Callable<?> task) {
             if (task instanceof Parcelable) {
-                synchronized (tasks) {
-                    tasks.remove(Integer.parseInt(((ParcelableTask) task).scriptUri.lastPathSegment))
-                }
+                removeTask(task as ParcelableTask)
+
+                events.add(taskId(task), TaskBatch.CANCELLED, null)
 
                 rcl.beginBroadcast()
 
@@ -421,10 +740,21 @@ final class ScriptBuilder extends GoroService {
         @Override
         void onTaskError(Callable<?> task, Throwable error) {
             if (task instanceof Parcelable) {
-                synchronized (tasks) {
-                    tasks.remove(Integer.parseInt(((ParcelableTask) task).scriptUri.lastPathSegment))
+                removeTask(task as ParcelableTask)
+
+                // batch listeners only get the message
+                Log.e TAG, "Task ${taskId(task)} has failed", error
+
+                if (error instanceof MultipleCompilationErrorsException) {
+                    def collector = (error as MultipleCompilationErrorsException).errorCollector
+
+                    for (int i = 0; i < collector.errorCount; i++) {
+                        Log.e TAG, 'Compilation error', collector.getException(i)
+                    }
                 }
 
+                events.add(taskId(task), TaskBatch.FAILED, error)
+
                 rcl.beginBroadcast()
 
                 def callbacksCount = rcl.registeredCallbackCount
@@ -482,16 +812,41 @@ final class ScriptBuilder extends GoroService {
         }
     }
 
+    /**
+     * @return the executor, handed to scripts as the executor binding
+     */
+    static Executor getScriptExecutor() {
+        return scriptRunner
+    }
+
     private static class ScriptRunner implements Executor, RejectedExecutionHandler, ThreadFactory {
         private final AtomicInteger threadCount = new AtomicInteger(1)
 
-        final DelegatingThreadGroup parentGroup = new DelegatingThreadGroup(Looper.mainLooper.thread.threadGroup)
+        private final String name
+
+        private final ThreadPoolExecutor delegate
 
-        private volatile ScheduledThreadPoolExecutor delegate
+        /**
+         * @param threads the number of threads, with the rest of commands waiting in queue, or 0 to start a thread
+         * for every command, that finds no idle one
+         */
+        ScriptRunner(String name, int threads) {
+            this.name = name
+
+            if (threads > 0) {
+                delegate = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), this, this)
+
+                delegate.allowCoreThreadTimeOut(true)
+            } else {
+                delegate = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), this, this)
+            }
+        }
 
         @Override
         Thread newThread(Runnable r) {
-            def thread = new Thread(parentGroup, r, "Groovy pool thread #${threadCount.incrementAndGet()}", 2000000)
+            def thread = new Thread(scriptThreads, r, "$name #${threadCount.incrementAndGet()}", 2000000)
             thread.priority = Thread.NORM_PRIORITY
             return thread
         }
@@ -500,34 +855,11 @@ final class ScriptBuilder extends GoroService {
         void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
             Log.e TAG, "failed to submit a task $r to $executor!"
 
-            if (!executor.shutdown && !executor.terminating) {
-                executor.shutdownNow()
-            }
-
             throw new ThreadDeath()
         }
 
-        synchronized void reset() {
-            // TODO: better sync here?
-            def delegateRef = delegate
-
-            delegate = null
-
-            delegateRef.shutdownNow()
-
-            while (!delegateRef.awaitTermination(10, TimeUnit.SECONDS));
-        }
-
         @Override
         void execute(Runnable command) {
-            if (delegate == null) {
-                synchronized (this) {
-                    if (delegate == null) {
-                        delegate = new ScheduledThreadPoolExecutor(Runtime.runtime.availableProcessors(), this, this)
-                    }
-                }
-            }
-
             delegate.execute(command)
         }
     }
@@ -0,0 +1,261 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Captures System.out and System.err of tasks (println of scripts, Grape progress etc.) into a fixed-size
+ * {@link Ring} per task, while still passing everything on to the original streams. Output of commands, submitted
+ * through the executor binding of the task (see {@link #capturing}), goes to the task's ring too; threads are pooled, so
+ * the ring is set for each command, rather than inherited.
+ *
+ * <p>
+ *
+ * Writers never wait for slow readers: when the ring is full, the oldest bytes are overwritten, and readers learn how
+ * many bytes they have missed. Rings of the last few finished tasks are kept, so that their output can be read
+ * after they are done.
+ */
+@CompileStatic
+final class ScriptOutput {
+    /**
+     * Size of the ring of each task in bytes
+     */
+    static volatile int capacity = 64 << 10
+
+    private static final int RETAINED = 16
+
+    private static final ThreadLocal<Ring> current = new ThreadLocal<>()
+
+    private static final AtomicLong runCount = new AtomicLong()
+
+    // by task ids, the oldest first
+    private static final LinkedHashMap<Integer, Ring> rings = new LinkedHashMap<>()
+
+    private static boolean installed
+
+    private ScriptOutput() {}
+
+    /**
+     * Replaces System.out and System.err with streams, which also write to the ring of the current task
+     */
+    static synchronized void install() {
+        if (installed) return
+
+        System.setOut(new PrintStream(new Router(System.out), true))
+        System.setErr(new PrintStream(new Router(System.err), true))
+
+        installed = true
+    }
+
+    /**
+     * Starts capturing the output of the current thread for the task; must be followed by {@link #detach} on the same
+     * thread
+     */
+    static Ring attach(int taskId) {
+        def ring = new Ring(runCount.incrementAndGet(), capacity)
+
+        synchronized (rings) {
+            rings.remove(taskId)
+            rings.put(taskId, ring)
+
+            def iterator = rings.values().iterator()
+
+            while (rings.size() > RETAINED && iterator.hasNext()) {
+                if (iterator.next().finished) iterator.remove()
+            }
+        }
+
+        current.set(ring)
+
+        return ring
+    }
+
+    static void detach(Ring ring) {
+        ring.finished = true
+
+        current.remove()
+    }
+
+    /**
+     * @return the executor, which runs commands with the output captured into the ring of current thread's task, or
+     * the executor itself, if the output of current thread is not captured
+     */
+    static Executor capturing(Executor executor) {
+        def ring = current.get()
+
+        if (ring == null) return executor
+
+        return { Runnable command ->
+            executor.execute({
+                def previous = current.get()
+
+                current.set(ring)
+                try {
+                    command.run()
+                } finally {
+                    if (previous != null) {
+                        current.set(previous)
+                    } else {
+                        current.remove()
+                    }
+                }
+            } as Runnable)
+        } as Executor
+    }
+
+    /**
+     * @return the ring of the last run of the task or null, if the task has not been run lately
+     */
+    static Ring get(int taskId) {
+        synchronized (rings) {
+            return rings.get(taskId)
+        }
+    }
+
+    static final class Ring {
+        // distinguishes runs of the same task
+        final long run
+
+        private final byte[] buffer
+
+        // total number of bytes ever written; the ring holds the last buffer.length of them
+        private long written
+
+        private volatile boolean finished
+
+        private Ring(long run, int capacity) {
+            this.run = run
+            this.buffer = new byte[capacity]
+        }
+
+        boolean isFinished() {
+            return finished
+        }
+
+        synchronized long getWritten() {
+            return written
+        }
+
+        /**
+         * @return the number of bytes, which have been overwritten before anyone could read them
+         */
+        synchronized long getOverwritten() {
+            return Math.max(0L, written - buffer.length)
+        }
+
+        synchronized void write(int b) {
+            buffer[(int) (written % buffer.length)] = (byte) b
+
+            written++
+        }
+
+        synchronized void write(byte[] b, int off, int len) {
+            if (len > buffer.length) {
+                // only the tail would survive anyway
+                written += len - buffer.length
+                off += len - buffer.length
+                len = buffer.length
+            }
+
+            int at = (int) (written % buffer.length)
+            int first = Math.min(len, buffer.length - at)
+
+            System.arraycopy(b, off, buffer, at, first)
+            System.arraycopy(b, off + first, buffer, 0, len - first)
+
+            written += len
+        }
+
+        /**
+         * @return the position of the first byte at or after the position (the number of bytes, written before it),
+         * which is still in the ring
+         */
+        synchronized long startOf(long position) {
+            return Math.min(Math.max(position, Math.max(0L, written - buffer.length)), written)
+        }
+
+        /**
+         * Copies bytes, starting at the position, which must be still in the ring (see {@link #startOf}); lock the
+         * ring around both calls to keep the position valid
+         *
+         * @return the number of copied bytes
+         */
+        synchronized int read(long start, byte[] dest) {
+            int len = (int) Math.min((long) dest.length, written - start)
+
+            int at = (int) (start % buffer.length)
+            int first = Math.min(len, buffer.length - at)
+
+            System.arraycopy(buffer, at, dest, 0, first)
+            System.arraycopy(buffer, 0, dest, first, len - first)
+
+            return len
+        }
+
+        int getCapacity() {
+            return buffer.length
+        }
+    }
+
+    private static final class Router extends OutputStream {
+        private final PrintStream original
+
+        Router(PrintStream original) {
+            this.original = original
+        }
+
+        @Override
+        void write(int b) throws IOException {
+            def ring = current.get()
+
+            if (ring != null && !ring.finished) ring.write(b)
+
+            original.write(b)
+        }
+
+        @Override
+        void write(byte[] b, int off, int len) throws IOException {
+            def ring = current.get()
+
+            if (ring != null && !ring.finished) ring.write(b, off, len)
+
+            original.write(b, off, len)
+        }
+
+        @Override
+        void flush() throws IOException {
+            original.flush()
+        }
+    }
+}
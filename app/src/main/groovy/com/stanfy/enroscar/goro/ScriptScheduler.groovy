@@ -0,0 +1,258 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.os.Process
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Named queues of scripts, each with it's own limit of concurrently running tasks and thread priority.
+ *
+ * <p>
+ *
+ * Goro runs all tasks of a queue one by one, so tasks are handed to it without queue and wait for their turn here
+ * instead: tasks of the same queue may run in parallel up to the limit, and tasks of other queues do not wait for
+ * them at all. Compilation of any script also waits for a turn in {@link #COMPILE} queue, so that compiling and
+ * dexing of several scripts at once can not take every core from the scripts, which are already running.
+ */
+@CompileStatic
+final class ScriptScheduler {
+    static final String COMPILE = 'compile'
+
+    private static final int CPUS = Runtime.runtime.availableProcessors()
+
+    private static final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>()
+
+    static {
+        configure(Goro.DEFAULT_QUEUE, CPUS, Process.THREAD_PRIORITY_DEFAULT)
+        configure(COMPILE, Math.max(1, CPUS.intdiv(2)), Process.THREAD_PRIORITY_BACKGROUND)
+    }
+
+    private ScriptScheduler() {}
+
+    /**
+     * Sets the limit of concurrently running tasks and the thread priority (see {@link Process#setThreadPriority})
+     * of the queue. Tasks, which are already running, keep their priority
+     */
+    static void configure(String queue, int limit, int priority) {
+        def lane = lane(queue)
+
+        lane.priority = priority
+        lane.setLimit(Math.max(1, limit))
+    }
+
+    /**
+     * @return the queue, created with the same limit and priority as {@link Goro#DEFAULT_QUEUE}, if it is not known yet
+     */
+    static Lane lane(String queue) {
+        def lane = lanes.get(queue)
+
+        if (lane == null) {
+            def defaults = lanes.get(Goro.DEFAULT_QUEUE)
+
+            lane = new Lane(queue, defaults ? defaults.limit : CPUS,
+                    defaults ? defaults.priority : Process.THREAD_PRIORITY_DEFAULT)
+
+            lane = lanes.putIfAbsent(queue, lane) ?: lane
+        }
+
+        return lane
+    }
+
+    static Collection<Lane> getLanes() {
+        return new ArrayList<Lane>(lanes.values())
+    }
+
+    /**
+     * A queue; the order of turns is the order of {@link #enter} calls
+     */
+    static final class Lane {
+        final String name
+
+        volatile int priority
+
+        private volatile int limit
+
+        private final ArrayDeque<Turn> waiting = new ArrayDeque<>()
+
+        private final Set<Turn> running = new LinkedHashSet<>()
+
+        private long admitted
+
+        private long waitNanos
+
+        private long maxWaitNanos
+
+        private Lane(String name, int limit, int priority) {
+            this.name = name
+            this.limit = limit
+            this.priority = priority
+        }
+
+        int getLimit() {
+            return limit
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = limit
+
+            admitWaiting()
+        }
+
+        /**
+         * Waits for a turn and switches the current thread to priority of the queue
+         *
+         * @return the turn, which must be passed to {@link #leave}
+         */
+        Turn enter() throws InterruptedException {
+            def turn = new Turn(Thread.currentThread(), System.nanoTime())
+
+            synchronized (this) {
+                waiting.addLast(turn)
+
+                admitWaiting()
+
+                try {
+                    while (!turn.admitted) {
+                        wait()
+                    }
+                } catch (InterruptedException ie) {
+                    if (turn.admitted) {
+                        release(turn)
+                    } else {
+                        waiting.remove(turn)
+                    }
+
+                    throw ie
+                }
+            }
+
+            turn.previousPriority = Process.getThreadPriority(Process.myTid())
+
+            Process.setThreadPriority(priority)
+
+            return turn
+        }
+
+        void leave(Turn turn) {
+            Process.setThreadPriority(turn.previousPriority)
+
+            synchronized (this) {
+                release(turn)
+            }
+        }
+
+        /**
+         * Gives up the turn on behalf of it's thread, which does not leave the queue in time, so that other tasks
+         * do not wait for it. Leaving afterwards is harmless
+         */
+        synchronized void abandon(Turn turn) {
+            release(turn)
+        }
+
+        synchronized int getRunning() {
+            return running.size()
+        }
+
+        synchronized int getDepth() {
+            return waiting.size()
+        }
+
+        synchronized long getAdmitted() {
+            return admitted
+        }
+
+        /**
+         * @return total time, spent by admitted tasks waiting for their turns
+         */
+        synchronized long getWaitNanos() {
+            return waitNanos
+        }
+
+        synchronized long getMaxWaitNanos() {
+            return maxWaitNanos
+        }
+
+        private void release(Turn turn) {
+            running.remove(turn)
+
+            admitWaiting()
+        }
+
+        private void admitWaiting() {
+            boolean changed = false
+
+            while (running.size() < limit && !waiting.empty) {
+                def next = waiting.pollFirst()
+
+                def waited = System.nanoTime() - next.enqueued
+
+                next.waitNanos = waited
+                next.admitted = true
+
+                running.add(next)
+
+                admitted++
+                waitNanos += waited
+                maxWaitNanos = Math.max(maxWaitNanos, waited)
+
+                changed = true
+            }
+
+            if (changed) notifyAll()
+        }
+    }
+
+    static final class Turn {
+        final Thread thread
+
+        private final long enqueued
+
+        private boolean admitted
+
+        private int previousPriority
+
+        private long waitNanos
+
+        private Turn(Thread thread, long enqueued) {
+            this.thread = thread
+            this.enqueued = enqueued
+        }
+
+        /**
+         * @return time, spent waiting for this turn
+         */
+        long getWaitNanos() {
+            return waitNanos
+        }
+    }
+}
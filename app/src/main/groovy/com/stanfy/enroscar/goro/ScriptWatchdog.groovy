@@ -0,0 +1,300 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import groovy.transform.CompileStatic
+import net.sf.fakenames.api.ScriptBudget
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cancels script tasks on request or when they exceed their {@link ScriptBudget}. Cancellation escalates for as long
+ * as the script keeps running:
+ *
+ * <ol>
+ *     <li>the thread of the task is interrupted;</li>
+ *     <li>after {@link #gracePeriod}, the task gives up it's turn in queue and the host retires (see HostSlots), so
+ *     that neither queued, nor new tasks wait for it;</li>
+ *     <li>after another grace period the process is killed together with the script and any threads it has started.</li>
+ * </ol>
+ *
+ * Budgets and cancellation requests are checked periodically by a single thread, which never waits for scripts.
+ */
+@CompileStatic
+final class ScriptWatchdog {
+    private static final String TAG = 'ScriptWatchdog'
+
+    private static final long CHECK_PERIOD = 250
+
+    // USER_HZ, the unit of CPU times in /proc, is 100 on Android
+    private static final long MILLIS_PER_TICK = 10
+
+    /**
+     * Budget of scripts, which do not set their own
+     */
+    static volatile ScriptBudget defaultBudget = ScriptBudget.UNLIMITED
+
+    /**
+     * Time in milliseconds between escalation steps
+     */
+    static volatile long gracePeriod = 5000
+
+    static volatile ScriptBuilder host
+
+    // handles of every run, several runs of the same script may be watched at once
+    private static final Set<Handle> handles = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>())
+
+    private static volatile ScheduledExecutorService checker
+
+    private ScriptWatchdog() {}
+
+    /**
+     * Starts watching the task, which runs on current thread; must be followed by {@link #release}
+     */
+    static Handle watch(int taskId, ScriptScheduler.Lane lane) {
+        def handle = new Handle(taskId, lane, Thread.currentThread(), Process.myTid())
+
+        handles.add(handle)
+
+        startChecker()
+
+        return handle
+    }
+
+    /**
+     * Stops watching the task; must be called on the thread of the task
+     */
+    static void release(Handle handle) {
+        handles.remove(handle)
+
+        synchronized (handle) {
+            handle.released = true
+
+            // the thread is pooled, an interruption, meant for the task, must not hit the next one
+            if (Thread.currentThread().is(handle.thread)) Thread.interrupted()
+        }
+    }
+
+    /**
+     * Cancels every running run of the task
+     *
+     * @return false, if the task is not running (anymore)
+     */
+    static boolean cancel(int taskId) {
+        boolean found = false
+
+        for (Handle handle : handles) {
+            if (handle.taskId == taskId) {
+                handle.cancel()
+
+                found = true
+            }
+        }
+
+        return found
+    }
+
+    static void cancelQueue(String queue) {
+        for (Handle handle : handles) {
+            if (handle.lane.name == queue) handle.cancel()
+        }
+    }
+
+    private static void startChecker() {
+        if (checker != null) return
+
+        synchronized (ScriptWatchdog) {
+            if (checker != null) return
+
+            def pool = new ScheduledThreadPoolExecutor(1, { Runnable r ->
+                def thread = new Thread(r, 'Script watchdog')
+                thread.daemon = true
+                // scripts may take every core, and that is when the watchdog is needed most
+                thread.priority = Thread.MAX_PRIORITY
+                return thread
+            } as ThreadFactory)
+
+            pool.scheduleWithFixedDelay({ check() } as Runnable, CHECK_PERIOD, CHECK_PERIOD, TimeUnit.MILLISECONDS)
+
+            checker = pool
+        }
+    }
+
+    private static void check() {
+        def now = SystemClock.elapsedRealtime()
+
+        for (Handle handle : handles) {
+            try {
+                handle.check(now)
+            } catch (Throwable t) {
+                Log.e TAG, "Failed to check task $handle.taskId", t
+            }
+        }
+    }
+
+    static final class Handle {
+        final int taskId
+
+        final ScriptScheduler.Lane lane
+
+        final Thread thread
+
+        private final int tid
+
+        private volatile ScriptScheduler.Turn turn
+
+        private volatile ScriptBudget budget = ScriptBudget.UNLIMITED
+
+        private volatile long limitedAt
+
+        private volatile long cpuAtLimit
+
+        private volatile boolean cancelled
+
+        // guarded by the handle, see ScriptWatchdog#release
+        private boolean released
+
+        // touched by the checker only
+        private int stage
+        private long stageAt
+
+        private Handle(int taskId, ScriptScheduler.Lane lane, Thread thread, int tid) {
+            this.taskId = taskId
+            this.lane = lane
+            this.thread = thread
+            this.tid = tid
+        }
+
+        /**
+         * Records the (current) turn of the task in it's queue, so that the turn can be given up for the task
+         */
+        ScriptScheduler.Turn getTurn() {
+            return turn
+        }
+
+        void admitted(ScriptScheduler.Turn turn) {
+            this.turn = turn
+
+            ScriptBuilder.tasks.started(taskId)
+        }
+
+        /**
+         * Applies the budget from now on; called by the task before running the script
+         */
+        void limit(ScriptBudget budget) {
+            cpuAtLimit = budget.cpuMillis ? cpuMillis() : 0
+            limitedAt = SystemClock.elapsedRealtime()
+
+            this.budget = budget
+        }
+
+        void cancel() {
+            cancelled = true
+        }
+
+        boolean isCancelled() {
+            return cancelled
+        }
+
+        private void check(long now) {
+            if (stage == 0) {
+                def reason = cancelled ? 'cancelled' : exceeded(now)
+
+                if (!reason) return
+
+                cancelled = true
+
+                synchronized (this) {
+                    // the thread may have moved on to another task already
+                    if (released) return
+
+                    Log.w TAG, "Interrupting task $taskId: $reason"
+
+                    thread.interrupt()
+                }
+            } else {
+                if (now - stageAt < gracePeriod) return
+
+                if (stage == 1) {
+                    Log.w TAG, "Task $taskId ignores interruption, moving it out of queue $lane.name"
+
+                    def turnRef = turn
+                    if (turnRef) lane.abandon(turnRef)
+
+                    def hostRef = host
+                    if (hostRef && !hostRef.retiring) hostRef.retire()
+                } else {
+                    Log.e TAG, "Task $taskId does not stop, recycling the process"
+
+                    Process.killProcess(Process.myPid())
+                }
+            }
+
+            stage++
+            stageAt = now
+        }
+
+        private String exceeded(long now) {
+            def limits = budget
+
+            if (limits.wallMillis && now - limitedAt > limits.wallMillis)
+                return "wall time exceeds $limits.wallMillis ms"
+
+            if (limits.cpuMillis && cpuMillis() - cpuAtLimit > limits.cpuMillis)
+                return "CPU time exceeds $limits.cpuMillis ms"
+
+            return null
+        }
+
+        /**
+         * @return CPU time, spent by the thread of task in user and kernel mode, or 0 if it is unknown
+         */
+        private long cpuMillis() {
+            try {
+                def stat = new File("/proc/self/task/$tid/stat").text
+
+                // the name of thread, in parentheses, may contain spaces; the state follows it
+                def fields = stat.substring(stat.lastIndexOf(')') + 2).split(' ')
+
+                // utime and stime are 14th and 15th fields, the state is 3rd
+                return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * MILLIS_PER_TICK
+            } catch (IOException | RuntimeException ignored) {
+                return 0
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.os.Bundle
+import groovy.transform.CompileStatic
+
+/**
+ * Task events, collected by {@link TaskEvents} over a short interval and sent to batch listeners as a single Bundle.
+ * Events of the same task are coalesced into a set of {@link #SCHEDULED} etc. bits, in the order of the first event
+ * of each task. A task, which has been scheduled again within the batch, appears once more for the new run.
+ *
+ * <p>
+ *
+ * Every event has a version, the versions of consecutive events are consecutive numbers. A batch, which does not
+ * start right after the previous one, means, that some events have been missed, and the listener should resync with
+ * {@link IPCGoro#getRunningTasks}.
+ */
+@CompileStatic
+final class TaskBatch {
+    static final int SCHEDULED = 1
+    static final int STARTED = 1 << 1
+    static final int FINISHED = 1 << 2
+    static final int CANCELLED = 1 << 3
+    static final int FAILED = 1 << 4
+
+    static final int DONE = FINISHED | CANCELLED | FAILED
+
+    private static final String KEY_SINCE = 'since'
+    private static final String KEY_VERSION = 'version'
+    private static final String KEY_TASKS = 'tasks'
+    private static final String KEY_EVENTS = 'events'
+    private static final String KEY_ERRORS = 'errors'
+
+    // versions of the first and the last event in batch
+    final long since
+    final long version
+
+    private final int[] tasks
+    private final int[] events
+    private final String[] errors
+
+    private TaskBatch(long since, long version, int[] tasks, int[] events, String[] errors) {
+        this.since = since
+        this.version = version
+        this.tasks = tasks
+        this.events = events
+        this.errors = errors
+    }
+
+    int size() {
+        return tasks.length
+    }
+
+    int taskId(int index) {
+        return tasks[index]
+    }
+
+    int events(int index) {
+        return events[index]
+    }
+
+    /**
+     * @return message of the error, if the task has {@link #FAILED}, otherwise null
+     */
+    String error(int index) {
+        return errors[index]
+    }
+
+    /**
+     * @return the number of tasks, which have been scheduled in this batch, minus the number of those, which are done
+     */
+    int getRunningDelta() {
+        int delta = 0
+
+        for (int taskEvents : events) {
+            if (taskEvents & SCHEDULED) delta++
+            if (taskEvents & DONE) delta--
+        }
+
+        return delta
+    }
+
+    Bundle toBundle() {
+        def bundle = new Bundle()
+
+        bundle.putLong(KEY_SINCE, since)
+        bundle.putLong(KEY_VERSION, version)
+        bundle.putIntArray(KEY_TASKS, tasks)
+        bundle.putIntArray(KEY_EVENTS, events)
+        bundle.putStringArray(KEY_ERRORS, errors)
+
+        return bundle
+    }
+
+    static TaskBatch create(long since, long version, int[] tasks, int[] events, String[] errors) {
+        return new TaskBatch(since, version, tasks, events, errors)
+    }
+
+    static TaskBatch fromBundle(Bundle bundle) {
+        return new TaskBatch(bundle.getLong(KEY_SINCE), bundle.getLong(KEY_VERSION), bundle.getIntArray(KEY_TASKS),
+                bundle.getIntArray(KEY_EVENTS), bundle.getStringArray(KEY_ERRORS))
+    }
+
+    static interface Listener {
+        /**
+         * Called on the main thread
+         *
+         * @param missedEvents whether some events have been missed since the previous batch (or since the listener
+         * has been added), in which case the batch alone does not tell, which tasks are running
+         */
+        void onTaskBatch(TaskBatch batch, boolean missedEvents)
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.os.Handler
+import android.os.IBinder
+import android.os.IInterface
+import android.os.Looper
+import android.os.Message
+import android.os.Messenger
+import android.os.RemoteCallbackList
+import android.os.RemoteException
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Buffers task events for batch listeners and sends them as {@link TaskBatch}, at most once per {@link #interval}.
+ * Adding an event never blocks; the batch is built and sent on the main thread, which is also where events get their
+ * versions, so that versions are sent in order.
+ */
+@CompileStatic @PackageScope
+final class TaskEvents {
+    static final int MSG_BATCH = 1
+
+    /**
+     * Time between batches, in milliseconds; by default, about a frame
+     */
+    static volatile long interval = 16
+
+    private final ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<>()
+
+    // version of the last sent event; touched on the main thread only
+    private long version
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean()
+
+    private final RemoteCallbackList<Target> targets = new RemoteCallbackList<>()
+
+    private final Handler handler = new Handler(Looper.mainLooper)
+
+    private final Runnable flushTask = { flush() } as Runnable
+
+    void addListener(Messenger messenger) {
+        targets.register(new Target(messenger))
+    }
+
+    void removeListener(Messenger messenger) {
+        targets.unregister(new Target(messenger))
+    }
+
+    void add(int taskId, int event, Throwable error) {
+        // nobody would receive it; listeners, registered later, start with a resync anyway
+        if (!targets.registeredCallbackCount) return
+
+        pending.add(new Event(taskId, event, error ? (error.message ?: error.class.name) : null))
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(flushTask, interval)
+        }
+    }
+
+    /**
+     * Sends pending events right away; must be called on the main thread
+     */
+    void flush() {
+        flushScheduled.set(false)
+
+        long since = version + 1
+
+        def polled = new ArrayList<Event>()
+
+        Event event
+        while ((event = pending.poll()) != null) {
+            polled.add(event)
+        }
+
+        version += polled.size()
+
+        def coalesced = coalesce(polled)
+
+        if (!coalesced) return
+
+        def tasks = new int[coalesced.size()]
+        def events = new int[coalesced.size()]
+        def errors = new String[coalesced.size()]
+
+        int i = 0
+        for (Event taskEvent : coalesced) {
+            tasks[i] = taskEvent.taskId
+            events[i] = taskEvent.events
+            errors[i] = taskEvent.error
+
+            i++
+        }
+
+        def batch = TaskBatch.create(since, version, tasks, events, errors).toBundle()
+
+        def count = targets.beginBroadcast()
+        try {
+            for (int j = 0; j < count; j++) {
+                def message = Message.obtain()
+                message.what = MSG_BATCH
+                message.data = batch
+
+                try {
+                    targets.getBroadcastItem(j).messenger.send(message)
+                } catch (RemoteException ignored) {
+                    // the listener is dead, RemoteCallbackList is going to drop it
+                }
+            }
+        } finally {
+            targets.finishBroadcast()
+        }
+    }
+
+    /**
+     * @return per run of task: events and error, in the order of the first event
+     */
+    static List<Event> coalesce(List<Event> events) {
+        def coalesced = new ArrayList<Event>()
+
+        // positions of the last runs in coalesced by task ids
+        def positions = new HashMap<Integer, Integer>()
+
+        for (Event event : events) {
+            def position = positions.get(event.taskId)
+
+            // a new run must not be mistaken for the end of the previous one
+            if (position == null || (event.events & TaskBatch.SCHEDULED)) {
+                positions.put(event.taskId, coalesced.size())
+
+                coalesced.add(event)
+            } else {
+                def previous = coalesced.get(position)
+
+                coalesced.set(position, new Event(event.taskId, previous.events | event.events,
+                        event.error ?: previous.error))
+            }
+        }
+
+        return coalesced
+    }
+
+    static final class Event {
+        final int taskId
+        final int events
+        final String error
+
+        Event(int taskId, int events, String error) {
+            this.taskId = taskId
+            this.events = events
+            this.error = error
+        }
+    }
+
+    private static final class Target implements IInterface {
+        final Messenger messenger
+
+        Target(Messenger messenger) {
+            this.messenger = messenger
+        }
+
+        @Override
+        IBinder asBinder() {
+            return messenger.binder
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro
+
+import android.content.Context
+import android.os.Bundle
+import android.os.Process
+import android.util.Log
+import groovy.grape.NastyGrapes
+import groovy.transform.CompileStatic
+import groovy.transform.PackageScope
+import internal.DexGroovyClassloader
+import internal.LoaderMetrics
+import net.sf.fakenames.app.ParcelableTask
+import net.sf.fakenames.app.RunMetrics
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Does the work, which otherwise falls on the first script in a new process: creation of meta classes for commonly
+ * used classes, loading of Groovy compiler and dx (by compiling a trivial script) and loading of Ivy settings.
+ * Runs in background with low priority; scripts, started meanwhile, simply share the work.
+ */
+@CompileStatic @PackageScope
+final class WarmUp implements Runnable {
+    private static final String TAG = 'WarmUp'
+
+    // not a valid name of script, so it can not clash with one; each host slot has it's own
+    private static final String UNIT_PREFIX = '.warm-up'
+
+    private static final String SCRIPT = 'def squares = (1..10).collect { it * it }\n' +
+            'def byParity = squares.groupBy { it % 2 }\n' +
+            '"${squares.sum()} ${byParity.keySet()}".toString()'
+
+    private static final Class<?>[] COMMON_CLASSES = [
+            Object, String, GString, Integer, Long, Double, BigDecimal, BigInteger, Boolean, Character,
+            ArrayList, LinkedHashMap, HashMap, HashSet, LinkedHashSet, IntRange, ObjectRange,
+            Closure, Script, Binding, Class, Thread, File, Map, List, Collection, Iterable, Number
+    ] as Class<?>[]
+
+    static final String KEY_META_CLASSES = 'warmUp.metaClasses'
+    static final String KEY_COMPILER = 'warmUp.compiler'
+    static final String KEY_IVY = 'warmUp.ivy'
+
+    private final Context context
+
+    private final int slot
+
+    private WarmUp(Context context, int slot) {
+        this.context = context.applicationContext
+        this.slot = slot
+    }
+
+    static void start(Context context, int slot) {
+        def thread = new Thread(new WarmUp(context, slot), 'Warm-up')
+        thread.priority = Thread.MIN_PRIORITY
+        thread.start()
+    }
+
+    @Override
+    void run() {
+        Process.threadPriority = Process.THREAD_PRIORITY_BACKGROUND
+
+        def steps = new Bundle()
+
+        try {
+            def started = LoaderMetrics.now()
+
+            def registry = GroovySystem.metaClassRegistry
+            for (Class<?> type : COMMON_CLASSES) {
+                registry.getMetaClass(type)
+            }
+
+            started = record(steps, KEY_META_CLASSES, started)
+
+            compileScript()
+
+            started = record(steps, KEY_COMPILER, started)
+
+            NastyGrapes.warmUp()
+
+            record(steps, KEY_IVY, started)
+
+            RunMetrics.recordWarmUp(steps)
+
+            Log.i TAG, "Warmed up in ${steps.getLong(KEY_META_CLASSES) + steps.getLong(KEY_COMPILER) + steps.getLong(KEY_IVY)} us"
+        } catch (Throwable t) {
+            // warm-up is optional, the first script will simply do all of it itself
+            Log.e TAG, "Failed to warm up: $t"
+        }
+    }
+
+    private void compileScript() {
+        def unitFile = DexGroovyClassloader.makeUnitFile(context, "$UNIT_PREFIX$slot")
+
+        // the class of previous warm-up would clash with the new one
+        unitFile.parentFile.deleteDir()
+
+        assert unitFile.parentFile.mkdirs() || unitFile.parentFile.exists(),
+                'Failed to create warm-up directory'
+
+        def classLoader = DexGroovyClassloader.getInstance(context, unitFile, ParcelableTask.createConfiguration())
+
+        try {
+            classLoader.parseClass(new GroovyCodeSource(SCRIPT, 'WarmUp', 'whatever'))
+        } finally {
+            // it's classes stay loaded, but it must not count as a cached script
+            DexGroovyClassloader.discard(unitFile)
+        }
+    }
+
+    private static long record(Bundle steps, String key, long started) {
+        def now = LoaderMetrics.now()
+
+        steps.putLong(key, TimeUnit.NANOSECONDS.toMicros(now - started))
+
+        return now
+    }
+}
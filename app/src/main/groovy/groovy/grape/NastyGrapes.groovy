@@ -34,6 +34,8 @@ import android.os.Environment
 import android.support.v4.content.ContextCompat
 import android.support.v4.os.EnvironmentCompat
 import groovy.transform.CompileStatic
+import internal.DexGroovyClassloader
+import internal.LoaderMetrics
 import net.sf.fakenames.app.BuildConfig
 import org.apache.ivy.Ivy
 import org.apache.ivy.core.cache.DefaultRepositoryCacheManager
@@ -103,6 +105,13 @@ final class NastyGrapes implements GrapeEngine {
         (Grape.@instance as NastyGrapes).ivyInstance.interrupt()
     }
 
+    /**
+     * Loads Ivy and it's settings ahead of the first grab
+     */
+    static void warmUp() {
+        (Grape.@instance as NastyGrapes).ivyInstance
+    }
+
     private final Map<Object, Set> exclusiveGrabArgs = [
             ['group', 'groupId', 'organisation', 'organization', 'org'],
             ['module', 'artifactId', 'artifact'],
@@ -119,7 +128,8 @@ final class NastyGrapes implements GrapeEngine {
     private @Lazy Set<IvyGrabRecord> grabRecordsForCurrDependencies = new LinkedHashSet<IvyGrabRecord>()
 
     // we keep the settings so that addResolver can add to the resolver chain
-    private @Lazy IvySettings settings = {
+    // (volatile, because those may be initialized by warm-up in background)
+    private @Lazy volatile IvySettings settings = {
         def result = new IvySettings()
 
         result.load(NastyGrapes.getResource("ivyderoid.xml"))
@@ -133,7 +143,7 @@ final class NastyGrapes implements GrapeEngine {
         return result
     }()
 
-    private @Lazy Ivy ivyInstance = {
+    private @Lazy volatile Ivy ivyInstance = {
         System.setProperty('android.ivy.home', "$grapeCacheDir")
 
         initialized = true
@@ -178,7 +188,14 @@ final class NastyGrapes implements GrapeEngine {
             // If we were in fail mode we would have already thrown an exception
             if (!loader) return
 
+            def resolveStarted = LoaderMetrics.now()
+
             def uris = resolve(loader, args, dependencies)
+
+            if (loader instanceof DexGroovyClassloader) {
+                (loader as DexGroovyClassloader).metrics.add(LoaderMetrics.Phase.RESOLVE, resolveStarted)
+            }
+
             for (URI uri in uris) {
                 loader.addURL(uri.toURL())
             }
@@ -3,17 +3,31 @@ package net.sf.fakenames.app
 import android.content.ContentValues
 import android.content.Context
 import android.net.Uri
+import android.os.Bundle
 import android.os.Parcel
 import android.os.Parcelable
 import android.os.PowerManager
+import android.os.SystemClock
 import android.os.Process
 import android.support.annotation.NonNull
 import android.support.annotation.Nullable
+import android.util.Log
+import com.stanfy.enroscar.goro.Goro
+import com.stanfy.enroscar.goro.ScriptBatches
+import com.stanfy.enroscar.goro.ScriptBuilder
+import com.stanfy.enroscar.goro.ScriptOutput
+import com.stanfy.enroscar.goro.ScriptScheduler
+import com.stanfy.enroscar.goro.ScriptWatchdog
 import com.stanfy.enroscar.goro.ServiceContextAware
 import groovy.transform.CompileStatic
 import groovy.transform.TupleConstructor
 import internal.DexGroovyClassloader
 import internal.GentleContextWrapper
+import internal.LoaderMetrics
+import internal.UnitStamp
+import net.sf.fakenames.api.CompileMode
+import net.sf.fakenames.api.CompileProfile
+import net.sf.fakenames.api.ScriptBudget
 import net.sf.fakenames.api.ContextAwareScript
 import net.sf.fakenames.db.ScriptContract
 import net.sf.fakenames.db.ScriptProvider
@@ -21,12 +35,25 @@ import net.sf.fakenames.dispatcher.Utils
 import org.codehaus.groovy.control.CompilerConfiguration
 import org.codehaus.groovy.control.customizers.ImportCustomizer
 
-import java.nio.channels.Channels
 import java.util.concurrent.Callable
 import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 @CompileStatic @TupleConstructor
 final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContextAware {
+    private static final String TAG = 'ParcelableTask'
+
+    private static final String[] IMPORTS = ['android.util.Log', 'android.widget.Toast']
+    private static final String[] STAR_IMPORTS = ['android.content', 'android.app', 'android.os', 'net.sf.fakenames.api']
+
+    // neither keeps any state between compilations, so those are shared by all tasks
+    private static final ImportCustomizer importCustomizer = new ImportCustomizer()
+            .addImports(IMPORTS)
+            .addStarImports(STAR_IMPORTS)
+
+    private static final PackageCustomizer packageCustomizer = new PackageCustomizer()
+
     private volatile Executor runner
     private volatile Context base
 
@@ -35,42 +62,168 @@ final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContext
     final Uri scriptUri
     final boolean runExisting
 
+    // see ScriptScheduler, null for Goro.DEFAULT_QUEUE
+    final String queue
+
+    // id and size of the batch, this task has been scheduled with, see ScriptBatches; null and 0 if there is none
+    final String batch
+    final int batchSize
+
+    private static final int NO_ID = Integer.MIN_VALUE
+
+    // parsed once per task, it is looked up by every event of the task
+    private int parsedTaskId = NO_ID
+
+    // set, once the task has arrived at it's batch or abandoned it
+    private final AtomicBoolean leftBatch = new AtomicBoolean()
+
+    /**
+     * @return the id of script record, which identifies the task in host, or -1 if there is no record yet
+     */
+    int getTaskId() {
+        if (parsedTaskId == NO_ID) {
+            parsedTaskId = scriptUri ? Integer.parseInt(scriptUri.lastPathSegment) : -1
+        }
+
+        return parsedTaskId
+    }
+
+    /**
+     * Lets the rest of the batch run without this task; called, when the task is done, possibly without having ever
+     * started (e.g. cancelled in queue)
+     */
+    void abandonBatch() {
+        if (batch && leftBatch.compareAndSet(false, true)) ScriptBatches.abandon(batch, batchSize)
+    }
+
     @Override
     void injectServiceContext(Context context) {
         this.base = context
+        this.runner = ScriptBuilder.scriptExecutor
     }
 
     @Override
     Void call() throws Exception {
-        def scriptSource = sourceUri
+        def started = LoaderMetrics.now()
 
-        def config = new CompilerConfiguration()
+        def lane = ScriptScheduler.lane(queue ?: Goro.DEFAULT_QUEUE)
 
-        config.scriptBaseClass = ContextAwareScript.class.name
+        def output = ScriptOutput.attach(getTaskId())
+
+        // watched from the start, so that a task, waiting for it's turn, can be cancelled too
+        def handle = ScriptWatchdog.watch(getTaskId(), lane)
+        try {
+            def turn = lane.enter()
+
+            handle.admitted(turn)
+
+            try {
+                perform(started, turn.waitNanos, lane, handle)
+            } finally {
+                // the turn may have been replaced, while waiting for the batch
+                lane.leave(handle.turn)
+            }
+        } finally {
+            ScriptWatchdog.release(handle)
+
+            abandonBatch()
+
+            ScriptOutput.detach(output)
+        }
+
+        return null
+    }
+
+    private void perform(long started, long waited, ScriptScheduler.Lane lane, ScriptWatchdog.Handle handle) {
+        def warmedUp = RunMetrics.warmedUp
+        def firstRun = RunMetrics.takeFirstRun()
+
+        def unitDir = DexGroovyClassloader.makeUnitFile(base.applicationContext, targetScript).parentFile
+
+        def stamp = UnitStamp.read(unitDir)
+
+        // a warm run of unchanged script needs neither the source, nor the record, nor the configuration: the stamp
+        // is rewritten (or removed), whenever the script is recompiled (or deleted)
+        def registered = runExisting ? ScriptRegistry.lookup(targetScript, stamp, null) : null
+
+        // downloading the script just to find out, that it has not changed, is hardly better than compiling it
+        byte[] source = registered || runExisting && stamp && sourceUri.scheme in ['http', 'https'] ? null : readSource()
+
+        def sourceHash = source != null ? UnitStamp.hash(source) : null
+
+        CompileMode compileMode
+        CompileProfile compileProfile
+        CompilerConfiguration config = null
+        ScriptBudget budget = null
+        String configHash = null
+        String[] record = null
+        File scriptCodeFile
+        boolean upToDate
+        int version
+
+        if (registered) {
+            compileMode = registered.mode
+            compileProfile = registered.profile
+            scriptCodeFile = registered.unitFile
+            version = registered.stamp.version
+            upToDate = true
+        } else {
+            config = createConfiguration()
+
+            record = queryRecord()
+
+            def sourceText = source != null ? new String(source, 'UTF-8') : null
+
+            // the script itself has the last word, the record only remembers, what it has said before
+            compileMode = (sourceText != null ? CompileMode.fromSource(sourceText) : null) ?:
+                    CompileMode.fromName(record[1]) ?: CompileMode.DYNAMIC
+
+            compileProfile = (sourceText != null ? CompileProfile.fromSource(sourceText) : null) ?:
+                    CompileProfile.fromName(record[2]) ?: CompileProfile.DEBUG
 
-        config.addCompilationCustomizers(
-                new ImportCustomizer()
-                        .addImports('android.util.Log', 'android.widget.Toast')
-                        .addStarImports('android.content', 'android.app', 'android.os', 'net.sf.fakenames.api'),
-                new PackageCustomizer())
-        // new ASTTransformationCustomizer(CompileStatic),
+            budget = sourceText != null ? ScriptBudget.fromSource(sourceText, ScriptWatchdog.defaultBudget) : null
 
-        def scriptCodeFile = DexGroovyClassloader.makeUnitFile(base.applicationContext, targetScript)
+            compileMode.customize(config)
 
-        if (!runExisting) {
-            def optimized = new File(DexGroovyClassloader.optimizedPathFor(scriptCodeFile, scriptCodeFile.parentFile))
+            configHash = UnitStamp.hash(describe(config, compileMode, compileProfile))
 
-            assert optimized.delete() || !optimized.exists(),
-                    'Failed to remove optimized file'
+            version = stamp ? stamp.version : 0
 
-            assert scriptCodeFile.delete() || !scriptCodeFile.exists(),
-                    'Failed to remove compiled file'
+            scriptCodeFile = DexGroovyClassloader.makeUnitFile(base.applicationContext, targetScript, version)
 
-            assert scriptCodeFile.parentFile.mkdirs() || scriptCodeFile.parentFile.exists(),
-                    'Failed to create script code directory'
+            upToDate = stamp?.matches(sourceHash, configHash) && scriptCodeFile.exists()
+
+            if (!upToDate) {
+                ScriptRegistry.forget(targetScript)
+            }
+
+            if (!upToDate && DexGroovyClassloader.cachedClassLoader(scriptCodeFile)) {
+                // classes of the previous version are already loaded, and can not be replaced
+                Log.i TAG, "Recompiling $targetScript, which is already loaded, into new unit"
+
+                scriptCodeFile = DexGroovyClassloader.makeUnitFile(base.applicationContext, targetScript, ++version)
+            }
+
+            if (!upToDate) {
+                def optimized = new File(DexGroovyClassloader.optimizedPathFor(scriptCodeFile, scriptCodeFile.parentFile))
+
+                assert optimized.delete() || !optimized.exists(),
+                        'Failed to remove optimized file'
+
+                assert scriptCodeFile.delete() || !scriptCodeFile.exists(),
+                        'Failed to remove compiled file'
+
+                assert scriptCodeFile.parentFile.mkdirs() || scriptCodeFile.parentFile.exists(),
+                        'Failed to create script code directory'
+            }
         }
 
-        def groovyClassLoader = DexGroovyClassloader.getInstance(base.applicationContext, scriptCodeFile, config)
+        def groovyClassLoader = registered ? registered.classLoader :
+                DexGroovyClassloader.getInstance(base.applicationContext, scriptCodeFile, config, compileProfile)
+
+        def metrics = groovyClassLoader.metrics
+
+        def before = metrics.snapshot()
 
         def thread = Thread.currentThread()
         def oldContextCl = thread.contextClassLoader
@@ -85,41 +238,71 @@ final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContext
 
             lock.acquire()
 
-            Class<?> scriptClass = null
+            if (!registered) {
+                Class<?> scriptClass = null
+
+                if (upToDate) {
+                    def className = record[0]
 
-            if (runExisting) {
-                def className = base.contentResolver.query(ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME),
-                        [ScriptContract.Scripts.CLASS_NAME] as String[],
-                        "$ScriptContract.Scripts.HUMAN_NAME = ?",
-                        [targetScript] as String[],
-                        null).withCloseable {
-                    it.moveToNext()
-                    it.getString(0)
+                    if (className)
+                        scriptClass = groovyClassLoader.loadClass(className)
                 }
 
-                if (className)
-                    scriptClass = groovyClassLoader.loadClass(className)
-            }
+                if (!scriptClass) {
+                    if (source == null) {
+                        source = readSource()
+                    }
+
+                    def scriptText = new String(source, 'UTF-8')
+
+                    budget = ScriptBudget.fromSource(scriptText, ScriptWatchdog.defaultBudget)
+
+                    def compileLane = ScriptScheduler.lane(ScriptScheduler.COMPILE)
+
+                    def compileTurn = compileLane.enter()
+
+                    waited += compileTurn.waitNanos
+
+                    def compileStarted = SystemClock.elapsedRealtime()
+                    def compileStartedNanos = LoaderMetrics.now()
 
-            if (!scriptClass) {
-                def channel = Channels.newChannel(Utils.openStreamForUri(base, scriptSource))
+                    try {
+                        scriptClass = groovyClassLoader.parseClass(new GroovyCodeSource(scriptText, targetScript, 'whatever'))
+                    } finally {
+                        compileLane.leave(compileTurn)
+                    }
 
-                scriptClass = Channels.newReader(channel, 'UTF-8').withCloseable {
-                    groovyClassLoader.parseClass(new GroovyCodeSource(it, targetScript, 'whatever'))
+                    metrics.add(LoaderMetrics.Phase.COMPILE, compileStartedNanos)
+
+                    Log.i TAG, "Compiled $targetScript in $compileMode mode with $compileProfile profile in " +
+                            "${SystemClock.elapsedRealtime() - compileStarted} ms, unit size is ${scriptCodeFile.length()} bytes"
+
+                    stamp = new UnitStamp(UnitStamp.hash(source), configHash, version)
+
+                    stamp.write(unitDir)
+
+                    def cv = new ContentValues(5)
+                    cv.put(ScriptContract.Scripts.HUMAN_NAME, targetScript)
+                    cv.put(ScriptContract.Scripts.CLASS_NAME, scriptClass.canonicalName)
+                    cv.put(ScriptContract.Scripts.SCRIPT_ORIGIN_URI, sourceUri as String)
+                    cv.put(ScriptContract.Scripts.COMPILE_MODE, compileMode.name())
+                    cv.put(ScriptContract.Scripts.COMPILE_PROFILE, compileProfile.name())
+                    base.contentResolver.insert(ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME), cv)
                 }
 
-                def cv = new ContentValues(3)
-                cv.put(ScriptContract.Scripts.HUMAN_NAME, targetScript)
-                cv.put(ScriptContract.Scripts.CLASS_NAME, scriptClass.canonicalName)
-                cv.put(ScriptContract.Scripts.SCRIPT_ORIGIN_URI, sourceUri as String)
-                base.contentResolver.insert(ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME), cv)
+                def context = new GentleContextWrapper(base.applicationContext, groovyClassLoader, targetScript)
+
+                registered = ScriptRegistry.register(targetScript, scriptClass, groovyClassLoader, context,
+                        scriptCodeFile, stamp, compileMode, compileProfile, budget)
             }
 
-            def groovyScript = scriptClass.newInstance() as Script
+            def groovyScript = registered.newScript()
+
+            def appContext = registered.context
 
-            def appContext = new GentleContextWrapper(base.applicationContext, groovyClassLoader, targetScript)
+            def executor = ScriptOutput.capturing(runner)
 
-            groovyScript.binding = new Binding(context: appContext, executor: runner)
+            groovyScript.binding = new Binding(context: appContext, executor: executor)
 
             if (groovyScript instanceof ContextAwareScript) {
                 def delegatingScript = groovyScript as ContextAwareScript
@@ -128,22 +311,126 @@ final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContext
                     delegatingScript.delegate = appContext
 
                 delegatingScript.context = appContext
-                delegatingScript.executor = runner
+                delegatingScript.executor = executor
+            }
+
+            if (batch && leftBatch.compareAndSet(false, true)) {
+                def batchStarted = LoaderMetrics.now()
+
+                // waits outside of the queue, so that tasks of the batch, which are still compiling, can get their turns
+                lane.leave(handle.turn)
+
+                ScriptBatches.arrive(batch, batchSize)
+
+                def turn = lane.enter()
+
+                handle.admitted(turn)
+
+                waited += LoaderMetrics.now() - batchStarted
             }
 
             if (Thread.currentThread().interrupted)
                 throw new InterruptedException()
 
-            groovyScript.run()
+            handle.limit(registered.budget ?: ScriptWatchdog.defaultBudget)
+
+            def runStarted = SystemClock.elapsedRealtime()
+            def runStartedNanos = LoaderMetrics.now()
+
+            try {
+                groovyScript.run()
+            } finally {
+                metrics.add(LoaderMetrics.Phase.RUN, runStartedNanos)
+            }
+
+            Log.i TAG, "Ran $targetScript ($compileMode, $compileProfile) in ${SystemClock.elapsedRealtime() - runStarted} ms"
         } finally {
             if (lock.held) lock.release()
 
             Thread.interrupted()
 
             thread.contextClassLoader = oldContextCl
+
+            def run = describeRun(metrics.snapshot() - before, compileMode, compileProfile)
+
+            run.putLong(RunMetrics.KEY_TOTAL, TimeUnit.NANOSECONDS.toMicros(LoaderMetrics.now() - started))
+            run.putBoolean(RunMetrics.KEY_FIRST_RUN, firstRun)
+            run.putBoolean(RunMetrics.KEY_WARMED_UP, warmedUp)
+            run.putString(RunMetrics.KEY_QUEUE, queue ?: Goro.DEFAULT_QUEUE)
+            run.putBoolean(RunMetrics.KEY_CANCELLED, handle.cancelled)
+            run.putLong(RunMetrics.KEY_WAIT, TimeUnit.NANOSECONDS.toMicros(waited))
+
+            RunMetrics.record(run)
         }
+    }
 
-        return null
+    private Bundle describeRun(LoaderMetrics.Snapshot run, CompileMode mode, CompileProfile profile) {
+        def result = new Bundle()
+
+        result.putString(RunMetrics.KEY_SCRIPT, targetScript)
+        result.putString(RunMetrics.KEY_MODE, mode.name())
+        result.putString(RunMetrics.KEY_PROFILE, profile.name())
+        result.putBoolean(RunMetrics.KEY_COMPILED, run.nanos(LoaderMetrics.Phase.COMPILE) != 0)
+        result.putLong(RunMetrics.KEY_FINISHED_AT, System.currentTimeMillis())
+
+        for (LoaderMetrics.Phase phase : LoaderMetrics.Phase.values()) {
+            result.putLong(RunMetrics.PREFIX_PHASE + phase.name().toLowerCase(Locale.ROOT), TimeUnit.NANOSECONDS.toMicros(run.nanos(phase)))
+        }
+
+        for (LoaderMetrics.Counter counter : LoaderMetrics.Counter.values()) {
+            result.putLong(RunMetrics.PREFIX_COUNT + counter.name().toLowerCase(Locale.ROOT), run.count(counter))
+        }
+
+        def classgen = run.nanos(LoaderMetrics.Phase.COMPILE) - run.nanos(LoaderMetrics.Phase.RESOLVE) -
+                run.nanos(LoaderMetrics.Phase.TRANSLATE) - run.nanos(LoaderMetrics.Phase.TO_DEX) -
+                run.nanos(LoaderMetrics.Phase.WRITE) - run.nanos(LoaderMetrics.Phase.LOAD)
+
+        result.putLong(RunMetrics.KEY_CLASSGEN, TimeUnit.NANOSECONDS.toMicros(Math.max(0L, classgen)))
+
+        return result
+    }
+
+    /**
+     * @return configuration of compiler for scripts, before applying {@link CompileMode}
+     */
+    static CompilerConfiguration createConfiguration() {
+        def config = new CompilerConfiguration()
+
+        config.scriptBaseClass = ContextAwareScript.class.name
+
+        config.addCompilationCustomizers(importCustomizer, packageCustomizer)
+
+        return config
+    }
+
+    /**
+     * @return class name, compile mode and profile from the record of the script (any may be null)
+     */
+    private String[] queryRecord() {
+        def cursor = base.contentResolver.query(ScriptProvider.contentUri(ScriptContract.Scripts.TABLE_NAME),
+                [ScriptContract.Scripts.CLASS_NAME, ScriptContract.Scripts.COMPILE_MODE,
+                 ScriptContract.Scripts.COMPILE_PROFILE] as String[],
+                "$ScriptContract.Scripts.HUMAN_NAME = ?",
+                [targetScript] as String[],
+                null)
+
+        return cursor.withCloseable {
+            it.moveToNext() ? [it.getString(0), it.getString(1), it.getString(2)] as String[] : new String[3]
+        }
+    }
+
+    private byte[] readSource() {
+        return Utils.openStreamForUri(base, sourceUri).withCloseable { InputStream it -> it.bytes }
+    }
+
+    /**
+     * Lists everything about the configuration, which affects the output of compiler. Customizers are code, so the
+     * version of application is included too
+     */
+    private static String describe(CompilerConfiguration config, CompileMode mode, CompileProfile profile) {
+        return "app $BuildConfig.VERSION_CODE; base $config.scriptBaseClass; target $config.targetBytecode; " +
+                "imports ${IMPORTS.join(',')}; star imports ${STAR_IMPORTS.join(',')}; " +
+                "customizers ${config.compilationCustomizers.collect { it.class.name }.join(',')}; mode $mode; profile $profile"
     }
 
     @Override
@@ -157,6 +444,9 @@ final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContext
         dest.writeParcelable(sourceUri, 0)
         dest.writeParcelable(scriptUri, 0)
         dest.writeValue(runExisting)
+        dest.writeString(queue)
+        dest.writeString(batch)
+        dest.writeInt(batchSize)
     }
 
     public static final Parcelable.Creator CREATOR = new Parcelable.Creator<ParcelableTask>() {
@@ -168,7 +458,10 @@ final class ParcelableTask implements Callable<Void>, Parcelable, ServiceContext
                     source.readString(),
                     source.<Uri> readParcelable(loader),
                     source.<Uri>readParcelable(loader),
-                    (boolean) source.readValue(loader))
+                    (boolean) source.readValue(loader),
+                    source.readString(),
+                    source.readString(),
+                    source.readInt())
 
             return task
         }
@@ -0,0 +1,128 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.app
+
+import android.os.Bundle
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Bounded history of script runs in this process, each described by a Bundle with the keys below. Times are in
+ * microseconds, phases, that did not happen during the run, are zero.
+ */
+@CompileStatic
+final class RunMetrics {
+    static final String KEY_SCRIPT = 'script'
+    static final String KEY_MODE = 'mode'
+    static final String KEY_PROFILE = 'profile'
+    static final String KEY_COMPILED = 'compiled'
+    static final String KEY_FINISHED_AT = 'finishedAt'
+
+    // the queue of the task, see ScriptScheduler in com.stanfy.enroscar.goro
+    static final String KEY_QUEUE = 'queue'
+
+    // whether the task has been cancelled or has exceeded it's budget, see ScriptWatchdog in com.stanfy.enroscar.goro
+    static final String KEY_CANCELLED = 'cancelled'
+
+    // everything, from the start of task to the end of script
+    static final String KEY_TOTAL = 'total'
+
+    // whether the run is the first one in it's process and whether warm-up of the process was over before it
+    static final String KEY_FIRST_RUN = 'firstRun'
+    static final String KEY_WARMED_UP = 'warmedUp'
+
+    // prefixes for lowercase names of LoaderMetrics.Phase and LoaderMetrics.Counter
+    static final String PREFIX_PHASE = 'phase.'
+    static final String PREFIX_COUNT = 'count.'
+
+    /**
+     * Compilation time without the time, spent in dx and Ivy. Approximate: grabbed jars, dexed in background, may
+     * overlap with compilation, so this may come out lower than it is
+     */
+    static final String KEY_CLASSGEN = PREFIX_PHASE + 'classgen'
+
+    // time, spent waiting for turns in the queue of task and in the queue of compilations, and for the rest of batch
+    static final String KEY_WAIT = PREFIX_PHASE + 'wait'
+
+    private static final int CAPACITY = 64
+
+    private static final ArrayDeque<Bundle> history = new ArrayDeque<>(CAPACITY)
+
+    private static final AtomicBoolean firstRunTaken = new AtomicBoolean()
+
+    private static volatile Bundle warmUp
+
+    private RunMetrics() {}
+
+    static void record(Bundle run) {
+        synchronized (history) {
+            if (history.size() == CAPACITY) history.removeFirst()
+
+            history.addLast(run)
+        }
+    }
+
+    /**
+     * @return true for the first caller in the process
+     */
+    static boolean takeFirstRun() {
+        return firstRunTaken.compareAndSet(false, true)
+    }
+
+    /**
+     * Records times of warm-up steps, see WarmUp in com.stanfy.enroscar.goro. Those are the upper bound of time,
+     * which the first run in process does not spend anymore; compare first runs with {@link #KEY_WARMED_UP} set and
+     * unset for the actual savings
+     */
+    static void recordWarmUp(Bundle steps) {
+        warmUp = steps
+    }
+
+    static boolean isWarmedUp() {
+        return warmUp != null
+    }
+
+    /**
+     * @return times of warm-up steps or null, if the process hasn't been warmed up (yet)
+     */
+    static Bundle getWarmUp() {
+        return warmUp
+    }
+
+    /**
+     * @return recorded runs, the oldest first
+     */
+    static List<Bundle> recent() {
+        synchronized (history) {
+            return new ArrayList<Bundle>(history)
+        }
+    }
+}
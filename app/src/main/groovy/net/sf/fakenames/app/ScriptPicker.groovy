@@ -61,9 +61,9 @@ import butterknife.OnItemClick
 import butterknife.OnItemLongClick
 import com.daimajia.swipe.adapters.SimpleCursorSwipeAdapter
 import com.stanfy.enroscar.goro.Goro
-import com.stanfy.enroscar.goro.GoroListener
 import com.stanfy.enroscar.goro.IPCGoro
 import com.stanfy.enroscar.goro.ScriptBuilder
+import com.stanfy.enroscar.goro.TaskBatch
 import groovy.transform.CompileStatic
 import internal.DexGroovyClassloader
 import internal.SturdyQueryHandler
@@ -71,9 +71,7 @@ import net.sf.fakenames.db.ScriptContract
 import net.sf.fakenames.db.ScriptProvider
 import net.sf.fakenames.dispatcher.MaterialProgressDrawable
 import net.sf.fakenames.dispatcher.Utils
-import org.codehaus.groovy.control.MultipleCompilationErrorsException
 
-import java.util.concurrent.Callable
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.Condition
@@ -81,7 +79,7 @@ import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantLock
 
 @CompileStatic
-final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbacks, GoroListener, ServiceConnection {
+final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbacks, TaskBatch.Listener, ServiceConnection {
     private static final String TAG = 'ScriptMgrActivity'
 
     @Delegate
@@ -366,7 +364,7 @@ final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbac
     @Override
     protected void onStop() {
         if (service) {
-            service.removeTaskListener(this)
+            service.removeBatchListener(this)
         }
 
         unbindService(this)
@@ -442,77 +440,46 @@ final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbac
     }
 
     @Override
-    void onTaskSchedule(Callable<?> task, String queue) {
-        waitingForChanges = false
+    void onTaskBatch(TaskBatch batch, boolean missedEvents) {
+        taskCount = missedEvents ? service.runningTasks.length : taskCount + batch.runningDelta
 
-        taskCount++
+        boolean done = false
+        boolean succeeded = false
+        String failure = null
 
-        updateState()
-    }
+        for (int i = 0; i < batch.size(); i++) {
+            def events = batch.events(i)
 
-    @Override
-    void onTaskStart(Callable<?> task) {}
+            if (events & TaskBatch.DONE) done = true
 
-    @Override
-    void onTaskFinish(Callable<?> task, Object result) {
-        taskCount--
-
-        waitingForChanges = false
-
-        deathLock.lock()
-        try {
-            serviceStopped.signal()
-        } finally {
-            deathLock.unlock()
+            if (events & TaskBatch.FAILED) {
+                failure = batch.error(i)
+            } else if (events & TaskBatch.FINISHED) {
+                succeeded = true
+            }
         }
 
-        updateState()
-
-        Toast.makeText(this, "Teh success!", Toast.LENGTH_LONG).show()
-    }
-
-    @Override
-    void onTaskCancel(Callable<?> task) {
-        waitingForChanges = false
-
-        taskCount--
-
-        deathLock.lock()
-        try {
-            serviceStopped.signal()
-        } finally {
-            deathLock.unlock()
+        if (done || batch.runningDelta) {
+            waitingForChanges = false
         }
 
-        updateState()
-    }
-
-    @Override
-    void onTaskError(Callable<?> task, Throwable error) {
-        waitingForChanges = false
-
-        taskCount--
-
-        deathLock.lock()
-        try {
-            serviceStopped.signal()
-        } finally {
-            deathLock.unlock()
+        if (done) {
+            deathLock.lock()
+            try {
+                serviceStopped.signal()
+            } finally {
+                deathLock.unlock()
+            }
         }
 
         updateState()
 
-        error.printStackTrace()
-
-        if (error instanceof MultipleCompilationErrorsException) {
-            def collector = (error as MultipleCompilationErrorsException).errorCollector
-
-            for (int i = 0; i < collector.errorCount; i++) {
-                collector.getException(i).printStackTrace()
-            }
+        // a batch may hold many runs, one toast for all of them is enough
+        if (failure != null) {
+            Toast.makeText(this, "Teh failure: $failure", Toast.LENGTH_LONG).show()
+        } else if (succeeded) {
+            Toast.makeText(this, "Teh success!", Toast.LENGTH_LONG).show()
         }
-
-        Toast.makeText(this, "Teh failure: $error.message", Toast.LENGTH_LONG).show()
     }
 
     public void onServiceConnected(ComponentName name, IBinder binder) {
@@ -524,7 +491,7 @@ final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbac
 
         taskCount = service.runningTasks.length
 
-        service.addTaskListener(this)
+        service.addBatchListener(this)
 
         updateState()
 
@@ -556,6 +523,11 @@ final class ScriptPicker extends Activity implements LoaderManager.LoaderCallbac
                 alreadyDisconnected = true
         }
 
+        // the process may have been retired in favor of another one, see HostSlots
+        unbindService(this)
+
+        assert ScriptBuilder.bindIt(this, this), 'Failed to initialize the service'
+
         updateState()
     }
 
@@ -0,0 +1,126 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.app
+
+import groovy.transform.CompileStatic
+import internal.DexGroovyClassloader
+import internal.GentleContextWrapper
+import internal.UnitStamp
+import net.sf.fakenames.api.CompileMode
+import net.sf.fakenames.api.CompileProfile
+import net.sf.fakenames.api.ScriptBudget
+
+import java.lang.reflect.Constructor
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Script classes, loaded in this process, by script names. Lets repeated runs of unchanged script skip querying
+ * the script record, creating compiler configuration and looking up the class loader and the class.
+ *
+ * <p>
+ *
+ * An entry remembers the {@link UnitStamp}, it's class has been compiled (or loaded) with. It is only used, while
+ * the stamp in unit directory is still the same and the unit's class loader is still cached: deleting the script
+ * removes the stamp, recompiling it (possibly in another process) writes a new one, and discarded class loaders
+ * are not reused.
+ */
+@CompileStatic
+final class ScriptRegistry {
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>()
+
+    private ScriptRegistry() {}
+
+    /**
+     * @param stamp current stamp of the unit, null if there is none
+     * @param sourceHash hash of current source of the script, null if the source hasn't been read
+     *
+     * @return the entry, still matching the unit, or null
+     */
+    static Entry lookup(String script, UnitStamp stamp, String sourceHash) {
+        def entry = entries.get(script)
+
+        if (entry == null) return null
+
+        if (stamp == null || !entry.matches(stamp, sourceHash) || !DexGroovyClassloader.cachedClassLoader(entry.unitFile)) {
+            entries.remove(script, entry)
+
+            return null
+        }
+
+        return entry
+    }
+
+    static Entry register(String script, Class<?> scriptClass, DexGroovyClassloader classLoader, GentleContextWrapper context,
+                          File unitFile, UnitStamp stamp, CompileMode mode, CompileProfile profile, ScriptBudget budget) {
+        def entry = new Entry(scriptClass.getConstructor(), classLoader, context, unitFile, stamp, mode, profile, budget)
+
+        entries.put(script, entry)
+
+        return entry
+    }
+
+    static void forget(String script) {
+        entries.remove(script)
+    }
+
+    static final class Entry {
+        final Constructor<?> constructor
+        final DexGroovyClassloader classLoader
+        final GentleContextWrapper context
+        final File unitFile
+        final UnitStamp stamp
+        final CompileMode mode
+        final CompileProfile profile
+
+        // set by the script itself or null
+        final ScriptBudget budget
+
+        private Entry(Constructor<?> constructor, DexGroovyClassloader classLoader, GentleContextWrapper context,
+                      File unitFile, UnitStamp stamp, CompileMode mode, CompileProfile profile, ScriptBudget budget) {
+            this.constructor = constructor
+            this.classLoader = classLoader
+            this.context = context
+            this.unitFile = unitFile
+            this.stamp = stamp
+            this.mode = mode
+            this.profile = profile
+            this.budget = budget
+        }
+
+        Script newScript() {
+            return constructor.newInstance() as Script
+        }
+
+        private boolean matches(UnitStamp current, String sourceHash) {
+            return current.version == stamp.version && current.sourceHash == stamp.sourceHash &&
+                    current.configHash == stamp.configHash && (sourceHash == null || sourceHash == stamp.sourceHash)
+        }
+    }
+}
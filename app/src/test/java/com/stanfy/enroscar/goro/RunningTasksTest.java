@@ -0,0 +1,155 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RunningTasksTest {
+    @Test
+    public void keepsIdsSorted() {
+        RunningTasks tasks = new RunningTasks();
+
+        tasks.queued(5);
+        tasks.queued(1);
+        tasks.queued(3);
+
+        assertArrayEquals(new int[] { 1, 3, 5 }, tasks.getIds());
+
+        assertFalse(tasks.remove(3));
+
+        assertArrayEquals(new int[] { 1, 5 }, tasks.getIds());
+    }
+
+    @Test
+    public void tracksStates() {
+        RunningTasks tasks = new RunningTasks();
+
+        tasks.queued(1);
+
+        assertEquals(RunningTasks.QUEUED, tasks.stateOf(1));
+
+        tasks.started(1);
+
+        assertEquals(RunningTasks.RUNNING, tasks.stateOf(1));
+        assertEquals(RunningTasks.NONE, tasks.stateOf(2));
+        assertEquals(-1, tasks.since(2));
+
+        assertTrue(tasks.remove(1));
+        assertTrue(tasks.remove(1));
+
+        assertEquals(RunningTasks.NONE, tasks.stateOf(1));
+    }
+
+    @Test
+    public void ignoresStartOfRemovedTask() {
+        RunningTasks tasks = new RunningTasks();
+
+        tasks.started(1);
+
+        assertEquals(0, tasks.size());
+    }
+
+    @Test
+    public void doesNotChangePublishedSnapshot() {
+        RunningTasks tasks = new RunningTasks();
+
+        tasks.queued(1);
+        tasks.queued(2);
+
+        int[] ids = tasks.getIds();
+
+        tasks.queued(0);
+        tasks.remove(2);
+
+        assertArrayEquals(new int[] { 1, 2 }, ids);
+        assertArrayEquals(new int[] { 0, 1 }, tasks.getIds());
+    }
+
+    @Test
+    public void losesNoConcurrentUpdates() throws InterruptedException {
+        final RunningTasks tasks = new RunningTasks();
+
+        final int threadCount = 8;
+        final int perThread = 1000;
+
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            final int first = i * perThread;
+
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int id = first; id < first + perThread; id++) {
+                        tasks.queued(id);
+                        tasks.started(id);
+                    }
+
+                    // every other task is finished
+                    for (int id = first; id < first + perThread; id += 2) {
+                        tasks.remove(id);
+                    }
+                }
+            });
+
+            threads[i].start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int[] ids = tasks.getIds();
+
+        assertEquals(threadCount * perThread / 2, ids.length);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i * 2 + 1, ids[i]);
+            assertEquals(RunningTasks.RUNNING, tasks.stateOf(ids[i]));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptBatchesTest {
+    private long timeout;
+
+    private String batch;
+
+    @Before
+    public void setUp() {
+        timeout = ScriptBatches.timeout;
+
+        // batches are static, so every test gets it's own
+        batch = UUID.randomUUID().toString();
+    }
+
+    @After
+    public void tearDown() {
+        ScriptBatches.timeout = timeout;
+    }
+
+    @Test
+    public void releasesBatchWhenAllArrive() throws InterruptedException {
+        CountDownLatch first = arriveInBackground(batch, 3);
+        CountDownLatch second = arriveInBackground(batch, 3);
+
+        assertFalse(first.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+
+        CountDownLatch third = arriveInBackground(batch, 3);
+
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertTrue(third.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void releasesBatchWhenAbandoned() throws InterruptedException {
+        CountDownLatch ran = arriveInBackground(batch, 2);
+
+        ScriptBatches.abandon(batch, 2);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void abandonsBeforeAnyoneArrives() throws InterruptedException {
+        ScriptBatches.abandon(batch, 2);
+
+        CountDownLatch ran = arriveInBackground(batch, 2);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void lateTaskDoesNotWait() throws InterruptedException {
+        ScriptBatches.timeout = 100;
+
+        ScriptBatches.arrive(batch, 2);
+
+        // the batch has timed out, so it is not started over
+        ScriptBatches.timeout = TimeUnit.MINUTES.toMillis(1);
+
+        CountDownLatch ran = arriveInBackground(batch, 2);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    private static CountDownLatch arriveInBackground(final String batch, final int size) {
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ScriptBatches.arrive(batch, size);
+
+                    ran.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }).start();
+
+        return ran;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ScriptOutputTest {
+    private static final int TASK_ID = -1;
+
+    private int capacity;
+
+    private ScriptOutput.Ring ring;
+
+    @Before
+    public void setUp() {
+        capacity = ScriptOutput.capacity;
+
+        ScriptOutput.capacity = 8;
+
+        ring = ScriptOutput.attach(TASK_ID);
+    }
+
+    @After
+    public void tearDown() {
+        ScriptOutput.detach(ring);
+
+        ScriptOutput.capacity = capacity;
+    }
+
+    @Test
+    public void readsWhatFits() {
+        ring.write(bytes("abc"), 0, 3);
+
+        assertEquals(0, ring.startOf(0));
+        assertEquals(0, ring.getOverwritten());
+        assertEquals("abc", read(0));
+        assertEquals("bc", read(1));
+        assertEquals("", read(3));
+    }
+
+    @Test
+    public void wrapsAround() {
+        ring.write(bytes("abcdef"), 0, 6);
+        ring.write(bytes("ghij"), 0, 4);
+
+        assertEquals(10, ring.getWritten());
+        assertEquals(2, ring.getOverwritten());
+
+        // the first two bytes are gone
+        assertEquals(2, ring.startOf(0));
+        assertEquals(5, ring.startOf(5));
+        assertEquals(10, ring.startOf(12));
+
+        assertEquals("cdefghij", read(ring.startOf(0)));
+        assertEquals("hij", read(7));
+    }
+
+    @Test
+    public void writesSingleBytesAcrossTheEnd() {
+        for (char c : "abcdefghijk".toCharArray()) {
+            ring.write(c);
+        }
+
+        assertEquals("defghijk", read(ring.startOf(0)));
+    }
+
+    @Test
+    public void keepsTailOfLongWrite() {
+        ring.write(bytes("xy"), 0, 2);
+        ring.write(bytes("0123456789abc"), 1, 11);
+
+        assertEquals(13, ring.getWritten());
+        assertEquals("456789ab", read(ring.startOf(0)));
+    }
+
+    @Test
+    public void readsIntoShortBuffer() {
+        ring.write(bytes("abcdefghij"), 0, 10);
+
+        byte[] dest = new byte[3];
+
+        assertEquals(3, ring.read(ring.startOf(0), dest));
+        assertArrayEquals(bytes("cde"), dest);
+
+        assertEquals(2, ring.read(8, dest));
+        assertArrayEquals(bytes("ij"), Arrays.copyOf(dest, 2));
+    }
+
+    @Test
+    public void keepsRingOfTask() {
+        assertSame(ring, ScriptOutput.get(TASK_ID));
+        assertEquals(8, ring.getCapacity());
+    }
+
+    private String read(long start) {
+        byte[] dest = new byte[ring.getCapacity()];
+
+        int len = ring.read(start, dest);
+
+        return new String(dest, 0, len);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptSchedulerTest {
+    private ScriptScheduler.Lane lane;
+
+    @Before
+    public void setUp() {
+        // lanes are static, so every test gets it's own
+        String queue = UUID.randomUUID().toString();
+
+        ScriptScheduler.configure(queue, 1, 0);
+
+        lane = ScriptScheduler.lane(queue);
+    }
+
+    @Test
+    public void returnsSameLane() {
+        assertSame(lane, ScriptScheduler.lane(lane.getName()));
+        assertEquals(1, lane.getLimit());
+    }
+
+    @Test
+    public void admitsUpToLimit() throws InterruptedException {
+        ScriptScheduler.Turn first = lane.enter();
+
+        Entrant second = new Entrant(lane);
+
+        assertFalse(second.admitted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, lane.getRunning());
+        assertEquals(1, lane.getDepth());
+
+        lane.leave(first);
+
+        assertTrue(second.admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(2, lane.getAdmitted());
+
+        lane.leave(second.turn.get());
+
+        assertEquals(0, lane.getRunning());
+    }
+
+    @Test
+    public void raisingLimitAdmitsWaiting() throws InterruptedException {
+        ScriptScheduler.Turn first = lane.enter();
+
+        Entrant second = new Entrant(lane);
+
+        assertFalse(second.admitted.await(100, TimeUnit.MILLISECONDS));
+
+        ScriptScheduler.configure(lane.getName(), 2, 0);
+
+        assertTrue(second.admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(2, lane.getRunning());
+
+        lane.leave(second.turn.get());
+        lane.leave(first);
+    }
+
+    @Test
+    public void abandonedTurnFreesLane() throws InterruptedException {
+        ScriptScheduler.Turn first = lane.enter();
+
+        Entrant second = new Entrant(lane);
+
+        lane.abandon(first);
+
+        assertTrue(second.admitted.await(5, TimeUnit.SECONDS));
+
+        // leaving after being abandoned does not free someone else's turn
+        lane.leave(first);
+
+        assertEquals(1, lane.getRunning());
+
+        lane.leave(second.turn.get());
+    }
+
+    @Test
+    public void interruptedEntrantLeavesQueue() throws InterruptedException {
+        ScriptScheduler.Turn first = lane.enter();
+
+        Entrant second = new Entrant(lane);
+
+        assertFalse(second.admitted.await(100, TimeUnit.MILLISECONDS));
+
+        second.thread.interrupt();
+        second.thread.join(5000);
+
+        assertEquals(0, lane.getDepth());
+
+        lane.leave(first);
+
+        assertEquals(0, lane.getRunning());
+    }
+
+    // enters the lane on a thread of it's own
+    private static final class Entrant implements Runnable {
+        final ScriptScheduler.Lane lane;
+
+        final Thread thread = new Thread(this);
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+
+        final AtomicReference<ScriptScheduler.Turn> turn = new AtomicReference<>();
+
+        Entrant(ScriptScheduler.Lane lane) {
+            this.lane = lane;
+
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                turn.set(lane.enter());
+
+                admitted.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package com.stanfy.enroscar.goro;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaskEventsTest {
+    @Test
+    public void mergesEventsOfRun() {
+        List<TaskEvents.Event> coalesced = TaskEvents.coalesce(Arrays.asList(
+                event(1, TaskBatch.SCHEDULED),
+                event(2, TaskBatch.SCHEDULED),
+                event(1, TaskBatch.STARTED),
+                event(1, TaskBatch.FINISHED)));
+
+        assertEquals(2, coalesced.size());
+
+        assertEvent(coalesced.get(0), 1, TaskBatch.SCHEDULED | TaskBatch.STARTED | TaskBatch.FINISHED, null);
+        assertEvent(coalesced.get(1), 2, TaskBatch.SCHEDULED, null);
+    }
+
+    @Test
+    public void keepsRunsApart() {
+        List<TaskEvents.Event> coalesced = TaskEvents.coalesce(Arrays.asList(
+                event(1, TaskBatch.SCHEDULED),
+                new TaskEvents.Event(1, TaskBatch.FAILED, "boom"),
+                event(1, TaskBatch.SCHEDULED),
+                event(1, TaskBatch.STARTED)));
+
+        assertEquals(2, coalesced.size());
+
+        // the failure belongs to the first run only
+        assertEvent(coalesced.get(0), 1, TaskBatch.SCHEDULED | TaskBatch.FAILED, "boom");
+        assertEvent(coalesced.get(1), 1, TaskBatch.SCHEDULED | TaskBatch.STARTED, null);
+    }
+
+    @Test
+    public void mergesIntoRunStartedEarlier() {
+        List<TaskEvents.Event> coalesced = TaskEvents.coalesce(Arrays.asList(
+                event(1, TaskBatch.STARTED),
+                new TaskEvents.Event(1, TaskBatch.FAILED, "first"),
+                new TaskEvents.Event(1, TaskBatch.CANCELLED, null)));
+
+        assertEquals(1, coalesced.size());
+
+        // the last error wins, but a missing one does not erase it
+        assertEvent(coalesced.get(0), 1, TaskBatch.STARTED | TaskBatch.FAILED | TaskBatch.CANCELLED, "first");
+    }
+
+    @Test
+    public void coalescesNothing() {
+        assertTrue(TaskEvents.coalesce(Collections.<TaskEvents.Event>emptyList()).isEmpty());
+    }
+
+    private static TaskEvents.Event event(int taskId, int events) {
+        return new TaskEvents.Event(taskId, events, null);
+    }
+
+    private static void assertEvent(TaskEvents.Event event, int taskId, int events, String error) {
+        assertEquals(taskId, event.getTaskId());
+        assertEquals(events, event.getEvents());
+        assertEquals(error, event.getError());
+    }
+}
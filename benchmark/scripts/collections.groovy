@@ -0,0 +1,19 @@
+// Collection methods with closures
+
+long started = System.nanoTime()
+
+List<Integer> numbers = (1..100000).toList()
+
+List<Integer> squares = numbers.collect { Integer it -> it * it }
+List<Integer> even = squares.findAll { Integer it -> it % 2 == 0 }
+
+def byDigit = numbers.groupBy { Integer it -> it % 10 }
+
+List<Integer> sorted = new ArrayList<Integer>(numbers)
+sorted.sort { Integer a, Integer b -> b <=> a }
+
+long total = 0
+even.each { Integer it -> total += it }
+
+Log.i('Benchmark', "collections: ${even.size()} even squares, ${byDigit.size()} groups, first ${sorted[0]}, " +
+        "total $total in ${(System.nanoTime() - started) / 1000000} ms")
@@ -0,0 +1,27 @@
+// Tight arithmetic loops: the worst case for call site dispatch
+
+long started = System.nanoTime()
+
+int fib(int n) {
+    n < 2 ? n : fib(n - 1) + fib(n - 2)
+}
+
+int fibResult = fib(24)
+
+boolean[] composite = new boolean[200000]
+int primes = 0
+for (int i = 2; i < composite.length; i++) {
+    if (!composite[i]) {
+        primes++
+        for (int j = i * 2; j < composite.length; j += i) {
+            composite[j] = true
+        }
+    }
+}
+
+double sum = 0
+for (int i = 1; i <= 500000; i++) {
+    sum += 1.0d / (i * (double) i)
+}
+
+Log.i('Benchmark', "numeric: fib $fibResult, $primes primes, sum $sum in ${(System.nanoTime() - started) / 1000000} ms")
@@ -0,0 +1,34 @@
+// Small classes, properties and virtual calls
+
+abstract class Shape {
+    abstract double area()
+}
+
+class Circle extends Shape {
+    double radius
+
+    double area() { Math.PI * radius * radius }
+}
+
+class Rect extends Shape {
+    double width
+    double height
+
+    double area() { width * height }
+}
+
+long started = System.nanoTime()
+
+List<Shape> shapes = new ArrayList<Shape>()
+for (int i = 0; i < 100000; i++) {
+    shapes.add(i % 2 ? new Circle(radius: i % 7) : new Rect(width: i % 5, height: i % 3))
+}
+
+double total = 0
+for (int round = 0; round < 10; round++) {
+    for (Shape shape : shapes) {
+        total += shape.area()
+    }
+}
+
+Log.i('Benchmark', "objects: ${shapes.size()} shapes, total area $total in ${(System.nanoTime() - started) / 1000000} ms")
@@ -0,0 +1,25 @@
+// String building, GStrings and regular expressions
+
+long started = System.nanoTime()
+
+StringBuilder builder = new StringBuilder()
+for (int i = 0; i < 20000; i++) {
+    builder.append("item-$i;")
+}
+
+String text = builder.toString()
+
+int matches = 0
+def matcher = text =~ /item-(\d+)7;/
+while (matcher.find()) {
+    matches++
+}
+
+List<String> parts = text.split(';').toList()
+int totalLength = 0
+for (String part : parts) {
+    totalLength += part.toUpperCase().reverse().length()
+}
+
+Log.i('Benchmark', "strings: $matches matches, ${parts.size()} parts, $totalLength chars in " +
+        "${(System.nanoTime() - started) / 1000000} ms")
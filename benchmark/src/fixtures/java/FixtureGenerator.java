@@ -0,0 +1,278 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates fixture jars for benchmarks. Each class is made of a mix of constructs, which dx handles differently
+ * (switches, exception handlers, arrays, string building, generics, inner classes) and references the next class,
+ * so that all of them are reachable from the first one. Output is deterministic, so regenerated jars only change,
+ * when this generator does.
+ *
+ * <p>
+ *
+ * Usage: FixtureGenerator &lt;output directory&gt;
+ */
+public final class FixtureGenerator {
+    private static final String[] NAMES = { "small", "medium", "large" };
+
+    // top-level classes, each of which also has an inner class
+    private static final int[] SIZES = { 16, 128, 512 };
+
+    private static final int CLASSES_PER_PACKAGE = 64;
+
+    // any fixed time will do, as long as it is the same in every run
+    private static final long ENTRY_TIME = 1420070400000L;
+
+    public static void main(String[] args) throws Exception {
+        File output = new File(args[0]);
+
+        if (!output.isDirectory() && !output.mkdirs()) throw new IOException("Failed to create " + output);
+
+        for (int i = 0; i < NAMES.length; i++) {
+            generate(NAMES[i], SIZES[i], output);
+        }
+    }
+
+    private static void generate(String name, int size, File output) throws Exception {
+        File work = new File(System.getProperty("java.io.tmpdir"), "fixture-" + name + '-' + System.nanoTime());
+
+        File sources = new File(work, "src");
+        File classes = new File(work, "classes");
+
+        if (!classes.mkdirs()) throw new IOException("Failed to create " + classes);
+
+        List<String> files = new ArrayList<String>();
+
+        for (int i = 0; i < size; i++) {
+            File source = new File(sources, packageOf(i).replace('.', '/') + "/C" + i + ".java");
+
+            if (!source.getParentFile().isDirectory() && !source.getParentFile().mkdirs())
+                throw new IOException("Failed to create " + source.getParent());
+
+            Writer writer = new OutputStreamWriter(new FileOutputStream(source), "UTF-8");
+            try {
+                writer.write(classSource(i, size));
+            } finally {
+                writer.close();
+            }
+
+            files.add(source.getPath());
+        }
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+        List<String> javacArgs = new ArrayList<String>(Arrays.asList(
+                "-source", "1.6", "-target", "1.6", "-g", "-nowarn", "-d", classes.getPath()));
+
+        javacArgs.addAll(files);
+
+        if (javac.run(null, null, null, javacArgs.toArray(new String[javacArgs.size()])) != 0)
+            throw new IllegalStateException("Failed to compile " + name + " fixture");
+
+        List<File> classFiles = new ArrayList<File>();
+        listClassFiles(classes, classFiles);
+
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(output, name + ".jar")));
+        try {
+            for (File classFile : classFiles) {
+                String entryName = classFile.getPath().substring(classes.getPath().length() + 1)
+                        .replace(File.separatorChar, '/');
+
+                JarEntry entry = new JarEntry(entryName);
+                entry.setTime(ENTRY_TIME);
+
+                jar.putNextEntry(entry);
+                jar.write(readFully(classFile));
+                jar.closeEntry();
+            }
+        } finally {
+            jar.close();
+        }
+
+        delete(work);
+
+        System.out.println(name + ".jar: " + classFiles.size() + " classes");
+    }
+
+    private static String packageOf(int index) {
+        return "fixture.p" + index / CLASSES_PER_PACKAGE;
+    }
+
+    private static String classSource(int i, int size) {
+        String self = "C" + i;
+        String next = packageOf((i + 1) % size) + ".C" + (i + 1) % size;
+
+        StringBuilder s = new StringBuilder();
+
+        s.append("package ").append(packageOf(i)).append(";\n\n");
+        s.append("import java.util.*;\n\n");
+
+        s.append("public class ").append(self).append(" implements java.io.Serializable, Comparable<").append(self)
+                .append("> {\n");
+
+        s.append("    private static final String[] WORDS = {");
+        for (int w = 0; w < 4 + i % 5; w++) {
+            s.append(w == 0 ? "" : ", ").append('"').append("word").append(i).append('_').append(w).append('"');
+        }
+        s.append("};\n\n");
+
+        s.append("    private final String name;\n");
+        s.append("    private int count;\n");
+        s.append("    private long[] values = new long[").append(4 + i % 7).append("];\n");
+        s.append("    private final Map<String, Integer> counts = new HashMap<String, Integer>();\n\n");
+
+        s.append("    public ").append(self).append("(String name) {\n");
+        s.append("        this.name = name;\n");
+        s.append("    }\n\n");
+
+        s.append("    public int compute(int x) {\n");
+        s.append("        int r = ").append(i).append(";\n");
+        s.append("        for (int k = 0; k < x; k++) {\n");
+        s.append("            switch (k % ").append(3 + i % 4).append(") {\n");
+        for (int c = 0; c < 3 + i % 4; c++) {
+            s.append("                case ").append(c).append(": r += k * ").append(c + 1).append(" ^ ").append(i)
+                    .append("; break;\n");
+        }
+        s.append("                default: r -= k;\n");
+        s.append("            }\n");
+        s.append("            values[k % values.length] += r;\n");
+        s.append("        }\n");
+        s.append("        return r;\n");
+        s.append("    }\n\n");
+
+        s.append("    public String describe() {\n");
+        s.append("        StringBuilder sb = new StringBuilder(name);\n");
+        s.append("        for (String word : WORDS) {\n");
+        s.append("            sb.append(' ').append(word).append('=').append(counts.get(word));\n");
+        s.append("        }\n");
+        s.append("        return sb.append(\" count \").append(count).toString();\n");
+        s.append("    }\n\n");
+
+        s.append("    public List<String> collect(Map<String, Integer> source) {\n");
+        s.append("        List<String> result = new ArrayList<String>();\n");
+        s.append("        for (Map.Entry<String, Integer> e : source.entrySet()) {\n");
+        s.append("            try {\n");
+        s.append("                if (e.getValue() > ").append(i % 10).append(") result.add(e.getKey());\n");
+        s.append("                counts.put(e.getKey(), Integer.parseInt(e.getKey()));\n");
+        s.append("            } catch (NumberFormatException nfe) {\n");
+        s.append("                count++;\n");
+        s.append("            }\n");
+        s.append("        }\n");
+        s.append("        Collections.sort(result);\n");
+        s.append("        return result;\n");
+        s.append("    }\n\n");
+
+        s.append("    public Object next() {\n");
+        s.append("        return new ").append(next).append("(name + '").append(i % 10).append("');\n");
+        s.append("    }\n\n");
+
+        s.append("    public Runnable task() {\n");
+        s.append("        return new Inner();\n");
+        s.append("    }\n\n");
+
+        s.append("    @Override\n");
+        s.append("    public int compareTo(").append(self).append(" other) {\n");
+        s.append("        return count != other.count ? count - other.count : name.compareTo(other.name);\n");
+        s.append("    }\n\n");
+
+        s.append("    class Inner implements Runnable {\n");
+        s.append("        @Override\n");
+        s.append("        public void run() {\n");
+        s.append("            synchronized (counts) {\n");
+        s.append("                count += compute(").append(8 + i % 8).append(");\n");
+        s.append("            }\n");
+        s.append("        }\n");
+        s.append("    }\n");
+
+        s.append("}\n");
+
+        return s.toString();
+    }
+
+    private static void listClassFiles(File dir, List<File> result) {
+        File[] files = dir.listFiles();
+
+        if (files == null) return;
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listClassFiles(file, result);
+            } else if (file.getName().endsWith(".class")) {
+                result.add(file);
+            }
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                result.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+
+        return result.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import com.android.dx.cf.direct.DirectClassFile
+import com.android.dx.cf.direct.StdAttributeFactory
+import com.android.dx.dex.DexOptions
+import com.android.dx.dex.cf.CfOptions
+import com.android.dx.dex.cf.CfTranslator
+import com.android.dx.dex.file.DexFile
+import groovy.transform.CompileStatic
+import net.sf.fakenames.api.CompileProfile
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+/**
+ * Translation of class files into Dex format and writing of the result, the way {@link DexGroovyClassloader} does
+ * both for grabbed jars
+ */
+@CompileStatic
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+class DexBenchmark {
+    @Param(['small', 'medium', 'large'])
+    public String fixture
+
+    @Param(['DEBUG', 'RELEASE'])
+    public String profile
+
+    private final CfOptions cfOptions = new CfOptions()
+
+    private final DexOptions dexOptions = new DexOptions()
+
+    private final List<String> entryNames = new ArrayList<>()
+
+    private final List<byte[]> classBytes = new ArrayList<>()
+
+    // same as DexGroovyClassloader.CLASSES_PER_TASK and dexingParallelism
+    private static final int CLASSES_PER_TASK = 32
+
+    private final ExecutorService dexers = Executors.newFixedThreadPool(Runtime.runtime.availableProcessors())
+
+    @TearDown(Level.Trial)
+    void stopDexers() {
+        dexers.shutdown()
+    }
+
+    @Setup(Level.Trial)
+    void readFixture() {
+        DexerOptions.configure(cfOptions, dexOptions, CompileProfile.valueOf(profile))
+
+        for (Map.Entry<String, byte[]> entry : Fixtures.readClasses(fixture).entrySet()) {
+            entryNames.add(entry.key)
+            classBytes.add(entry.value)
+        }
+    }
+
+    @Benchmark
+    DexFile translate() {
+        def dexFile = new DexFile(dexOptions)
+
+        for (int i = 0; i < entryNames.size(); i++) {
+            def bytes = classBytes.get(i)
+
+            def dexerFile = new DirectClassFile(bytes, entryNames.get(i), true)
+            dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
+
+            dexFile.add(CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, dexFile))
+        }
+
+        return dexFile
+    }
+
+    /**
+     * The same as {@link #translate}, split between threads the way DexGroovyClassloader.translate does it
+     */
+    @Benchmark
+    DexFile translateParallel() {
+        def dexFile = new DexFile(dexOptions)
+
+        def tasks = new ArrayList<Callable<Void>>()
+
+        for (int from = 0; from < entryNames.size(); from += CLASSES_PER_TASK) {
+            def start = from
+            def end = Math.min(from + CLASSES_PER_TASK, entryNames.size())
+
+            tasks << ({
+                for (int i = start; i < end; i++) {
+                    def bytes = classBytes.get(i)
+
+                    def dexerFile = new DirectClassFile(bytes, entryNames.get(i), true)
+                    dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
+
+                    def classDefItem = CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, dexFile)
+
+                    synchronized (dexFile) {
+                        dexFile.add(classDefItem)
+                    }
+                }
+
+                return null
+            } as Callable<Void>)
+        }
+
+        for (Future<Void> future : dexers.invokeAll(tasks)) {
+            future.get()
+        }
+
+        return dexFile
+    }
+
+    @Benchmark
+    byte[] toDex(Translated translated) {
+        return translated.dexFile.toDex(null, false)
+    }
+
+    /**
+     * DexFile can only be written once, so each call of toDex gets a freshly translated one
+     */
+    @State(Scope.Thread)
+    static class Translated {
+        DexFile dexFile
+
+        @Setup(Level.Invocation)
+        void translate(DexBenchmark benchmark) {
+            dexFile = benchmark.translate()
+        }
+    }
+}
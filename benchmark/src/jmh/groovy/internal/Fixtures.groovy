@@ -0,0 +1,84 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+
+import java.util.jar.JarEntry
+import java.util.jar.JarInputStream
+
+/**
+ * Fixture jars, made by FixtureGenerator (see the fixtures source set): small, medium and large hold 32, 256 and
+ * 1024 classes respectively
+ */
+@CompileStatic
+final class Fixtures {
+    private Fixtures() {}
+
+    /**
+     * @return contents of classes in the fixture by their entry names, in the order of the jar
+     */
+    static Map<String, byte[]> readClasses(String fixture) {
+        def result = new LinkedHashMap<String, byte[]>()
+
+        new JarInputStream(open(fixture)).withCloseable { JarInputStream jar ->
+            JarEntry entry
+            while ((entry = jar.nextJarEntry) != null) {
+                if (entry.name.endsWith('.class')) result.put(entry.name, jar.bytes)
+            }
+        }
+
+        return result
+    }
+
+    static File copyTo(String fixture, File dir) {
+        def target = new File(dir, "${fixture}.jar")
+
+        open(fixture).withCloseable { InputStream it -> target.bytes = it.bytes }
+
+        return target
+    }
+
+    static File createTempDir(String prefix) {
+        def dir = File.createTempFile(prefix, '')
+
+        assert dir.delete() && dir.mkdirs()
+
+        return dir
+    }
+
+    private static InputStream open(String fixture) {
+        def stream = Fixtures.getResourceAsStream("/fixtures/${fixture}.jar")
+
+        if (stream == null) throw new FileNotFoundException("No fixture named $fixture")
+
+        return new BufferedInputStream(stream)
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lookups of already dexed classes: finding Dex files of the unit on start (with Dex files themselves replaced by
+ * fixture jars, since those can not be loaded outside of Android) and finding the Dex file of a class afterwards
+ */
+@CompileStatic
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+class LookupBenchmark {
+    private static final String[] FIXTURES = ['small', 'medium', 'large']
+
+    private File unitDir
+
+    private File unitFile
+
+    private final Map<String, File> dependencies = new LinkedHashMap<>()
+
+    private final List<String> classNames = new ArrayList<>()
+
+    // same as DexGroovyClassloader.classLocations, with jars in place of Dex files
+    private final Map<String, File> classLocations = new ConcurrentHashMap<>()
+
+    @Setup(Level.Trial)
+    void createUnit() {
+        unitDir = Fixtures.createTempDir('unit')
+        unitFile = new File(unitDir, 'unit.jar')
+
+        def dependencyIndex = DependencyIndex.open(unitDir, unitFile)
+        def classIndex = ClassIndex.open(unitDir)
+
+        for (String fixture : FIXTURES) {
+            def dexJar = Fixtures.copyTo(fixture, unitDir)
+
+            def dependency = "fixtures/$fixture/1.0/${fixture}.jar/" as String
+
+            dependencyIndex.put(dependency, dexJar, DependencyIndex.hash(dexJar), [dexJar.name])
+
+            def names = Fixtures.readClasses(fixture).keySet().collect { String it ->
+                it.substring(0, it.length() - '.class'.length()).replace('/', '.')
+            }
+
+            classIndex.put(dexJar, names as String[])
+
+            dependencies.put(dependency, dexJar)
+
+            for (String name : names) {
+                classNames.add(name)
+                classLocations.put(name, dexJar)
+            }
+        }
+
+        dependencyIndex.save()
+        classIndex.save()
+    }
+
+    @TearDown(Level.Trial)
+    void deleteUnit() {
+        unitDir.deleteDir()
+    }
+
+    /**
+     * Reading both indexes and looking up every dependency and Dex file, as the class loader does on start
+     */
+    @Benchmark
+    int openUnit() {
+        def dependencyIndex = DependencyIndex.open(unitDir, unitFile)
+        def classIndex = ClassIndex.open(unitDir)
+
+        int classes = 0
+
+        for (Map.Entry<String, File> dependency : dependencies.entrySet()) {
+            for (String dexJar : dependencyIndex.lookup(dependency.key, dependency.value)) {
+                classes += classIndex.lookup(new File(unitDir, dexJar)).length
+            }
+        }
+
+        return classes
+    }
+
+    /**
+     * Finding the Dex file of every class, as findClass does before defining a class
+     */
+    @Benchmark
+    void findDexedClasses(Blackhole blackhole) {
+        for (String className : classNames) {
+            blackhole.consume(classLocations.get(className))
+        }
+    }
+}
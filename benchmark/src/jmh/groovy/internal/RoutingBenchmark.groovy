@@ -0,0 +1,179 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package internal
+
+import groovy.transform.CompileStatic
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Class lookups of the kind, Groovy resolver makes while compiling a script (mostly probes of default imports, which
+ * fail), against a stubbed parent: without routing, as it used to be, and through {@link ClassRouting}, the way
+ * {@link DexGroovyClassloader#loadClass} does it, minus Dex files
+ */
+@CompileStatic
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+class RoutingBenchmark {
+    private static final String[] DEFAULT_IMPORTS = [
+            'java.lang.', 'java.util.', 'java.io.', 'java.net.', 'groovy.lang.', 'groovy.util.', '' ]
+
+    private static final String[] KNOWN = [
+            'java.lang.String', 'java.lang.Object', 'java.util.List', 'java.util.Map', 'java.io.File',
+            'android.app.Activity', 'android.os.Bundle', 'android.util.Log' ]
+
+    private final List<String> names = new ArrayList<>()
+
+    private ClassLoader parent
+
+    private ClassRouting routing
+
+    @Setup(Level.Trial)
+    void createNames() {
+        parent = new StubParent(new HashSet<String>(Arrays.asList(KNOWN)))
+
+        names.addAll(KNOWN)
+
+        // every simple name, used by a script, is probed with each default import
+        for (int i = 0; i < 64; i++) {
+            for (String prefix : DEFAULT_IMPORTS) {
+                names.add("${prefix}ScriptType$i" as String)
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    void createRouting() {
+        routing = new ClassRouting()
+    }
+
+    /**
+     * Every lookup goes to parent, every miss throws a new exception
+     */
+    @Benchmark
+    int unrouted() {
+        int missing = 0
+
+        for (String name : names) {
+            try {
+                parent.loadClass(name)
+            } catch (ClassNotFoundException ignored) {
+                missing++
+            }
+        }
+
+        return missing
+    }
+
+    /**
+     * Lookups with misses remembered from previous invocations
+     */
+    @Benchmark
+    int routed() {
+        return lookupAll()
+    }
+
+    /**
+     * Lookups right after the class path has changed (e.g. a jar has been grabbed), with misses of parent-only
+     * names still remembered
+     */
+    @Benchmark
+    int routedAfterClassPathChange() {
+        routing.classPathChanged()
+
+        return lookupAll()
+    }
+
+    private int lookupAll() {
+        int missing = 0
+
+        for (String name : names) {
+            try {
+                lookup(name)
+            } catch (ClassNotFoundException ignored) {
+                missing++
+            }
+        }
+
+        return missing
+    }
+
+    // same as DexGroovyClassloader.loadClass, without Dex files
+    private Class<?> lookup(String name) throws ClassNotFoundException {
+        if (routing.isParentOnly(name)) return routing.loadFromParent(parent, name)
+
+        long generation = routing.generation
+
+        if (routing.isMissing(name, generation)) throw new ClassRouting.KnownMissingClassException(name)
+
+        try {
+            return parent.loadClass(name)
+        } catch (ClassNotFoundException cnfe) {
+            routing.missing(name, generation)
+
+            throw cnfe
+        }
+    }
+
+    /**
+     * Knows a few names, fails with a fresh exception for the rest, like a real class loader does
+     */
+    private static final class StubParent extends ClassLoader {
+        private final Set<String> known
+
+        StubParent(Set<String> known) {
+            super(null)
+
+            this.known = known
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name in known) return Object
+
+            throw new ClassNotFoundException(name)
+        }
+    }
+}
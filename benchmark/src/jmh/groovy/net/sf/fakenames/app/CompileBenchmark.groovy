@@ -0,0 +1,157 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package net.sf.fakenames.app
+
+import com.android.dx.cf.direct.DirectClassFile
+import com.android.dx.cf.direct.StdAttributeFactory
+import com.android.dx.dex.DexOptions
+import com.android.dx.dex.cf.CfOptions
+import com.android.dx.dex.cf.CfTranslator
+import com.android.dx.dex.file.DexFile
+import groovy.transform.CompileStatic
+import internal.DexerOptions
+import net.sf.fakenames.api.CompileMode
+import net.sf.fakenames.api.CompileProfile
+import org.codehaus.groovy.control.BytecodeProcessor
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
+import org.codehaus.groovy.control.customizers.ImportCustomizer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Parsing and class generation of benchmark scripts (see benchmark/scripts), configured like ParcelableTask does,
+ * except for the base class, which needs Android. Imported Android classes are stubbed.
+ */
+@CompileStatic
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 10)
+@Fork(1)
+class CompileBenchmark {
+    // same as in ParcelableTask
+    private static final String[] IMPORTS = ['android.util.Log', 'android.widget.Toast']
+    private static final String[] STAR_IMPORTS = ['android.content', 'android.app', 'android.os', 'net.sf.fakenames.api']
+
+    @Param(['numeric', 'strings', 'collections', 'objects'])
+    public String script
+
+    @Param(['DYNAMIC', 'STATIC'])
+    public String mode
+
+    private String source
+
+    private final CfOptions cfOptions = new CfOptions()
+
+    private final DexOptions dexOptions = new DexOptions()
+
+    @Setup(Level.Trial)
+    void readScript() {
+        source = CompileBenchmark.getResourceAsStream("/${script}.groovy").withCloseable { InputStream it ->
+            it.getText('UTF-8')
+        }
+
+        DexerOptions.configure(cfOptions, dexOptions, CompileProfile.DEBUG)
+    }
+
+    /**
+     * Parsing and class generation only
+     */
+    @Benchmark
+    int compile() {
+        def unit = new CompilationUnit(configure())
+
+        unit.addSource("${script}.groovy", source)
+        unit.compile(Phases.CLASS_GENERATION)
+
+        return unit.classes.size()
+    }
+
+    /**
+     * Parsing and class generation, followed by translation of classes, as DexGroovyClassloader does
+     */
+    @Benchmark
+    DexFile compileAndTranslate() {
+        def dexFile = new DexFile(dexOptions)
+
+        def config = configure()
+
+        config.bytecodePostprocessor = new BytecodeProcessor() {
+            @Override
+            byte[] processBytecode(String name, byte[] bytes) {
+                def dexerFile = new DirectClassFile(bytes, "${name.replace('.', '/')}.class", false)
+                dexerFile.attributeFactory = StdAttributeFactory.THE_ONE
+
+                dexFile.add(CfTranslator.translate(dexerFile, bytes, cfOptions, dexOptions, dexFile))
+
+                return bytes
+            }
+        }
+
+        def unit = new CompilationUnit(config)
+
+        unit.addSource("${script}.groovy", source)
+        unit.compile(Phases.CLASS_GENERATION)
+
+        return dexFile
+    }
+
+    private CompilerConfiguration configure() {
+        def config = new CompilerConfiguration()
+
+        config.optimizationOptions = [indy: false, int: true]
+        config.targetBytecode = CompilerConfiguration.JDK6
+
+        config.addCompilationCustomizers(
+                new ImportCustomizer()
+                        .addImports(IMPORTS)
+                        .addStarImports(STAR_IMPORTS),
+                new PackageCustomizer())
+
+        CompileMode.valueOf(mode).customize(config)
+
+        return config
+    }
+}
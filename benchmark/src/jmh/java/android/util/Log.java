@@ -0,0 +1,63 @@
+/*
+ * GroovyShell - Android harness for running Groovy programs
+ *
+ * Copyright © 2015 Alexander Rvachev
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * In addition, as a special exception, the copyright holders give
+ * permission to link the code of portions of this program with independent
+ * modules ("scripts") to produce an executable program, regardless of the license
+ * terms of these independent modules, and to copy and distribute the resulting
+ * script under terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that module.
+ * An independent module is a module which is not derived from or based on this library.
+ * If you modify this library, you may extend this exception to your version of
+ * the library, but you are not obligated to do so.  If you do not wish to do
+ * so, delete this exception statement from your version.
+ */
+package android.util;
+
+/**
+ * Stub for compiling benchmark scripts outside of Android, messages go to standard output
+ */
+public final class Log {
+    private Log() {}
+
+    public static int v(String tag, String msg) {
+        return println("V", tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    private static int println(String priority, String tag, String msg) {
+        System.out.println(priority + '/' + tag + ": " + msg);
+
+        return msg.length();
+    }
+}
@@ -41,7 +41,7 @@
 import com.annotatedsql.annotation.sql.Table;
 import com.annotatedsql.annotation.sql.Unique;
 
-@Schema(className = "ScriptSchema", dbName = "scripts.db", dbVersion = 4)
+@Schema(className = "ScriptSchema", dbName = "scripts.db", dbVersion = 6)
 @Provider(authority= ScriptContract.AUTHORITY, schemaClass="ScriptSchema", name="ScriptProviderProto", openHelperClass = "ScriptHelper")
 public interface ScriptContract {
     String AUTHORITY = BuildConfig.APPLICATION_ID + ".provider";
@@ -67,5 +67,13 @@ interface Scripts {
         // how the script identifies itself
         @Column(type = Column.Type.TEXT)
         String CLASS_NAME = "class_name";
+
+        // how the script was compiled last time, see CompileMode
+        @Column(type = Column.Type.TEXT)
+        String COMPILE_MODE = "compile_mode";
+
+        // which profile the script was compiled with last time, see CompileProfile
+        @Column(type = Column.Type.TEXT)
+        String COMPILE_PROFILE = "compile_profile";
     }
 }
\ No newline at end of file
@@ -36,6 +36,8 @@
 import android.net.Uri;
 import android.support.v4.content.ContextCompat;
 import internal.GentleContextWrapper;
+import net.sf.fakenames.api.CompileMode;
+import net.sf.fakenames.api.CompileProfile;
 import org.codehaus.groovy.runtime.ResourceGroovyMethods;
 
 import java.io.File;
@@ -71,9 +73,27 @@ public void onCreate(SQLiteDatabase db) {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        ScriptSchema.onDrop(db);
-        onCreate(db);
-        doChores();
+        if (oldVersion < 4) {
+            ScriptSchema.onDrop(db);
+            onCreate(db);
+            doChores();
+
+            return;
+        }
+
+        // scripts and their compiled units are kept, records of old scripts get the modes, they have been compiled with
+        if (oldVersion < 5) {
+            addColumn(db, ScriptContract.Scripts.COMPILE_MODE, CompileMode.DYNAMIC.name());
+        }
+
+        if (oldVersion < 6) {
+            addColumn(db, ScriptContract.Scripts.COMPILE_PROFILE, CompileProfile.DEBUG.name());
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase db, String column, String defaultValue) {
+        db.execSQL("ALTER TABLE " + ScriptContract.Scripts.TABLE_NAME + " ADD COLUMN " + column + " TEXT DEFAULT '" +
+                defaultValue + "'");
     }
 
     @Override